@@ -0,0 +1,40 @@
+package benchmark;
+
+import client.SecureManager;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.util.concurrent.TimeUnit;
+
+// SecureManager's AES on a chat sized message, what every SECURE costs its sender and its receiver
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AesBenchmark {
+
+    private final String plain = "Meet me at the usual place at 8, and don't tell anyone else about it";
+    private SecretKey key;
+    private String encrypted;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256); // Same as the session keys of SecureManager
+        key = keyGenerator.generateKey();
+        encrypted = SecureManager.aesEncrypt(plain, key);
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return SecureManager.aesEncrypt(plain, key);
+    }
+
+    @Benchmark
+    public String decrypt() {
+        return SecureManager.aesDecrypt(encrypted, key);
+    }
+}
@@ -0,0 +1,43 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import server.Server.Connection;
+import util.Codec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// handleBroadcast and its fan-out, one BROADCAST encoded once and handed to every other user
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int recipients;
+
+    private InMemoryServer server;
+    private Connection sender;
+    private byte[] broadcast;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new InMemoryServer();
+        while (server.users() < recipients) server.login(Codec.TEXT);
+        sender = server.login(Codec.TEXT);
+        broadcast = Codec.TEXT.encode("BROADCAST", "{\"message\":\"Hello everyone, what are we playing tonight?\"}");
+    }
+
+    @TearDown(Level.Iteration)
+    public void answerPings() {
+        server.answerPings();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        sender.onBytes(ByteBuffer.wrap(broadcast));
+    }
+}
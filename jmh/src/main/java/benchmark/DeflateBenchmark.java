@@ -0,0 +1,97 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import util.Codec;
+import util.FrameDeflater;
+import util.FrameInflater;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// What deflate costs a connection per 1000 messages, with a sync flush after every one of them (a quiet room)
+// or after every 64 (a busy one, frames queue up between two drains), and what inflating them costs the other side
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeflateBenchmark {
+
+    @Param({"1", "64"})
+    private int syncEvery;
+
+    private final byte[][] chat = chatFrames(1000);
+    private FrameDeflater deflater;
+    private List<byte[]> deflatedBatches;
+    private FrameInflater inflater;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        deflater = new FrameDeflater();
+        // An inflater can't be handed the same bytes twice, they only make sense right after what came before them.
+        // So it goes through a long stream deflated up front, and starts over on a new one when that runs out.
+        FrameDeflater upFront = new FrameDeflater();
+        deflatedBatches = new ArrayList<>();
+        for (int round = 0; round < 500; round++) {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (int i = 0; i < chat.length; i++) {
+                upFront.write(chat[i], 0, chat[i].length);
+                if ((i + 1) % syncEvery == 0) {
+                    ByteBuffer synced = upFront.sync();
+                    batch.write(synced.array(), 0, synced.remaining());
+                }
+            }
+            deflatedBatches.add(batch.toByteArray());
+        }
+        upFront.close();
+        inflater = new FrameInflater();
+    }
+
+    @TearDown
+    public void tearDown() {
+        deflater.close();
+        inflater.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public void deflate(Blackhole blackhole) {
+        for (int i = 0; i < chat.length; i++) {
+            deflater.write(chat[i], 0, chat[i].length);
+            if ((i + 1) % syncEvery == 0) blackhole.consume(deflater.sync().remaining());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public void inflate(Blackhole blackhole) throws Exception {
+        if (next == deflatedBatches.size()) {
+            inflater.close();
+            inflater = new FrameInflater(); // Ran through them all, start over on a fresh stream
+            next = 0;
+        }
+        inflater.setInput(ByteBuffer.wrap(deflatedBatches.get(next++)));
+        ByteBuffer piece;
+        while ((piece = inflater.inflate()) != null) blackhole.consume(piece.remaining());
+    }
+
+    // BROADCASTs the way a busy room sends them: a few dozen people, short messages, some of them the same
+    private static byte[][] chatFrames(int count) {
+        String[] messages = {"lol", "anyone up for a game?", "brb", "Hello everyone, what are we playing tonight?",
+                "did you see the release notes", "yes", "no way", "I'll be there in 5"};
+        Random random = new Random(count);
+        byte[][] frames = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            String message = messages[random.nextInt(messages.length)] + (random.nextBoolean() ? "" : " " + random.nextInt(1000));
+            frames[i] = Codec.TEXT.encode("BROADCAST", "{\"username\":\"user_" + random.nextInt(40) + "\",\"message\":\"" + message + "\"}");
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,50 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import server.Server.Connection;
+import util.Codec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// A PRIVATE going through the whole inbound path of Connection.messageHandler: framing, registry, typed decoding,
+// handler and response. LIST is the same without a body to decode.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    @Param({"TEXT", "BINARY"})
+    private Codec codec;
+
+    private InMemoryServer server;
+    private Connection sender;
+    private byte[] privateMessage, list;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new InMemoryServer();
+        sender = server.login(codec);
+        String receiver = server.username(server.login(Codec.TEXT));
+        privateMessage = codec.encode("PRIVATE", "{\"username\":\"" + receiver + "\",\"message\":\"How is it going?\"}");
+        list = codec.encode("LIST", "");
+    }
+
+    @TearDown(Level.Iteration)
+    public void answerPings() {
+        server.answerPings();
+    }
+
+    @Benchmark
+    public void privateMessage() {
+        sender.onBytes(ByteBuffer.wrap(privateMessage));
+    }
+
+    @Benchmark
+    public void list() {
+        sender.onBytes(ByteBuffer.wrap(list));
+    }
+}
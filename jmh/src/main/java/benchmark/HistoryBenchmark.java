@@ -0,0 +1,40 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import server.Frame;
+import server.History;
+
+import java.util.concurrent.TimeUnit;
+
+// What a BROADCAST pays for being kept, and what a login pays for the last 1000 of them, 4 in 5 entries being broadcasts
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+
+    private static final String MESSAGE = "Hello everyone, what are we playing tonight?";
+    private static final Frame FRAME = Frame.broadcast("BROADCAST", "{\"username\":\"bench\",\"message\":\"" + MESSAGE + "\"}");
+
+    private History appended, replayed;
+
+    @Setup
+    public void setUp() {
+        appended = new History();
+        replayed = new History();
+        for (int i = 0; i < 5000; i++) replayed.append(i % 5 == 0 ? "devs" : "", "bench", MESSAGE, FRAME);
+    }
+
+    @Benchmark
+    public long append() {
+        return appended.append("", "bench", MESSAGE, FRAME);
+    }
+
+    @Benchmark
+    public void replay1000(Blackhole blackhole) {
+        replayed.replay("", 1000, blackhole::consume);
+    }
+}
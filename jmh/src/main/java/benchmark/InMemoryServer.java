@@ -0,0 +1,97 @@
+package benchmark;
+
+import server.Frame;
+import server.Server;
+import server.Server.Connection;
+import server.Transport;
+import util.Codec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// An embedded Server whose connections sit on in-memory transports, so no sockets or other processes are involved.
+// Every user logged in is a recipient of the broadcasts, a benchmark logs in as many as it needs.
+// Not thread safe, the benchmarks using it run single threaded.
+public class InMemoryServer {
+
+    private final Server server = new Server(Server.Mode.THREADS);
+    private final List<MemoryTransport> transports = new ArrayList<>();
+    private long sink; // What the transports were handed, so the encoding can't be thrown away
+
+    public Connection login(Codec codec) throws Exception {
+        MemoryTransport transport = new MemoryTransport();
+        Connection connection = server.new Connection(transport);
+        transport.connection = connection;
+        transports.add(transport);
+        connection.onOpen();
+        if (codec != Codec.TEXT) {
+            connection.onBytes(ByteBuffer.wrap(Codec.TEXT.encode("PROTOCOL", "{\"codec\":\"" + codec.name().toLowerCase() + "\"}")));
+            transport.codec = codec;
+        }
+        transport.username = String.format("bench_%05d", transports.size());
+        connection.onBytes(ByteBuffer.wrap(codec.encode("LOGIN", "{\"username\":\"" + transport.username + "\"}")));
+        return connection;
+    }
+
+    public int users() {
+        return transports.size();
+    }
+
+    public String username(Connection connection) {
+        for (MemoryTransport transport : transports) if (transport.connection == connection) return transport.username;
+        throw new IllegalArgumentException("Not one of ours");
+    }
+
+    public long sink() {
+        return sink;
+    }
+
+    // PINGs come from the server's timers, the PONGs are fed in from the benchmark thread like any other frame.
+    // The heartbeat gives 3 seconds for it, so the benchmarks call this between iterations of a second.
+    public void answerPings() {
+        for (MemoryTransport transport : transports) {
+            if (transport.pinged) {
+                transport.pinged = false;
+                transport.connection.onBytes(ByteBuffer.wrap(transport.codec.encode("PONG", "")));
+            }
+        }
+    }
+
+    // Takes the frames the way a real transport would and throws them away, the encoding is still paid for
+    private class MemoryTransport implements Transport {
+        private Connection connection;
+        private String username;
+        private volatile Codec codec = Codec.TEXT;
+        private volatile boolean pinged = false;
+        private boolean closed = false;
+
+        @Override
+        public boolean send(Frame frame) {
+            if (frame.codecSwitch() != null) return true;
+            sink += frame.buffer(codec).remaining();
+            if (frame.length() == 5 && frame.toString().equals("PING")) pinged = true;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void abort(Frame farewell) {
+            closed = true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import messages.Response;
+import org.openjdk.jmh.annotations.*;
+import server.Frame;
+import util.Json;
+import util.Util;
+
+import java.util.concurrent.TimeUnit;
+
+// Util.getPropertyFromJson, and what sendResponse does before it hands the frame to the transport
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+
+    private final String json = "{\"filename\":\"holiday.zip\",\"receiver\":\"bob\",\"checksum\":\"9e107d9d372bb6826bd81d3542a419d6\"}";
+
+    @Benchmark
+    public String getPropertyFromJson() throws Exception {
+        return Util.getPropertyFromJson(json, "receiver");
+    }
+
+    @Benchmark
+    public Frame responseSerialization() throws JsonProcessingException {
+        return Frame.of("RESPONSE", Json.MAPPER.writeValueAsString(new Response<>("OK", 800, "BROADCAST")));
+    }
+}
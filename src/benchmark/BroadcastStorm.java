@@ -0,0 +1,141 @@
+package benchmark;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Measures how fast a running server fans broadcasts out. A few senders fire BROADCASTs as fast
+// as they can while every connected user counts what it receives. Start the server first, then:
+// java benchmark.BroadcastStorm [listeners] [senders] [messages per sender] [host] [port]
+public class BroadcastStorm {
+
+    // -----------------------------------   CONFIG   ------------------------------------------------
+
+    private final String host;
+    private final int port;
+    private final int listeners;
+    private final int senders;
+    private final int messagesPerSender;
+
+    // -----------------------------------   STATE   ------------------------------------------------
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final List<User> users = new ArrayList<>();
+    private CountDownLatch allDelivered;
+    private long expected;
+
+    public BroadcastStorm(String host, int port, int listeners, int senders, int messagesPerSender) {
+        this.host = host;
+        this.port = port;
+        this.listeners = listeners;
+        this.senders = senders;
+        this.messagesPerSender = messagesPerSender;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int listeners = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        String host = args.length > 3 ? args[3] : "127.0.0.1";
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 1337;
+        new BroadcastStorm(host, port, listeners, senders, messages).run();
+    }
+
+    public void run() throws Exception {
+        // Every broadcast reaches everyone but its sender
+        expected = (long) senders * messagesPerSender * (listeners + senders - 1);
+        allDelivered = new CountDownLatch(1);
+
+        for (int i = 0; i < listeners + senders; i++) {
+            User user = new User(String.format("storm_%05d", i));
+            users.add(user);
+            user.login();
+        }
+        System.out.printf("%d users logged in, %d of them sending %d broadcasts each%n", users.size(), senders, messagesPerSender);
+
+        long start = System.nanoTime();
+        for (User sender : users.subList(listeners, users.size()))
+            Thread.ofPlatform().start(sender::storm);
+
+        boolean finished = allDelivered.await(2, TimeUnit.MINUTES);
+        long elapsedNs = System.nanoTime() - start;
+
+        double seconds = elapsedNs / 1e9;
+        System.out.printf("%s: %d of %d deliveries in %.3f s -> %.0f deliveries/s, %.0f broadcasts/s%n",
+                finished ? "Done" : "Timed out", delivered.get(), expected, seconds,
+                delivered.get() / seconds, senders * messagesPerSender / seconds);
+        users.forEach(User::close);
+    }
+
+    // -----------------------------------   USER   ------------------------------------------------
+
+    private class User {
+        private final String username;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+        private final CountDownLatch loggedIn = new CountDownLatch(1);
+
+        User(String username) throws IOException {
+            this.username = username;
+            this.socket = new Socket(host, port);
+            this.socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void login() throws IOException, InterruptedException {
+            Thread.ofVirtual().start(this::listen);
+            write("LOGIN {\"username\":\"" + username + "\"}");
+            if (!loggedIn.await(10, TimeUnit.SECONDS))
+                throw new IllegalStateException(username + " could not log in");
+        }
+
+        void storm() {
+            String line = "BROADCAST {\"message\":\"Storm message from " + username + ", nothing to see here\"}\n";
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            try {
+                synchronized (this) {
+                    for (int i = 0; i < messagesPerSender; i++) out.write(bytes);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                System.err.println(username + " stopped sending: " + e.getMessage());
+            }
+        }
+
+        private void listen() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("BROADCAST ")) {
+                        if (delivered.incrementAndGet() == expected) allDelivered.countDown();
+                    } else if (line.equals("PING")) {
+                        write("PONG");
+                    } else if (line.contains("\"to\":\"LOGIN\"")) {
+                        loggedIn.countDown();
+                    }
+                }
+            } catch (IOException ignored) {
+                // Closed at the end of the run
+            }
+        }
+
+        private synchronized void write(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
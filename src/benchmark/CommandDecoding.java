@@ -0,0 +1,70 @@
+package benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import messages.FileTransferRequest;
+import messages.TextMessage;
+import util.Json;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+// Time and allocation per inbound PRIVATE and SEND_FILE, decoded the way the handlers used to
+// (a new mapper and a whole tree per property) and the way they do now (one pass into the record).
+// Runs on its own, no server needed: java benchmark.CommandDecoding [iterations]
+public class CommandDecoding {
+
+    private static final String PRIVATE = "{\"username\":\"receiver_1\",\"message\":\"Hey, are you coming to the game tonight?\"}";
+    private static final String SEND_FILE = "{\"filename\":\"holiday_photos.zip\",\"receiver\":\"receiver_1\",\"sender\":\"\","
+            + "\"sessionId\":\"" + UUID.randomUUID() + "\",\"relay\":\"10.0.0.2:1338\",\"size\":1048576,\"streams\":1}";
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static int sink; // Keeps the JIT from throwing the decoded values away
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        System.out.printf("%-26s %12s %12s%n", "", "ns/msg", "bytes/msg");
+        measure("PRIVATE, per property", iterations, () -> {
+            sink += getPropertyTheOldWay(PRIVATE, "message").length();
+            sink += getPropertyTheOldWay(PRIVATE, "username").length();
+        });
+        measure("PRIVATE, typed", iterations, () -> {
+            TextMessage message = Json.read(PRIVATE, TextMessage.class);
+            sink += message.message().length() + message.username().length();
+        });
+        measure("SEND_FILE, per property", iterations, () -> {
+            sink += getPropertyTheOldWay(SEND_FILE, "filename").length();
+            sink += getPropertyTheOldWay(SEND_FILE, "receiver").length();
+            sink += getPropertyTheOldWay(SEND_FILE, "relay").length();
+            sink += UUID.fromString(getPropertyTheOldWay(SEND_FILE, "sessionId")).hashCode();
+        });
+        measure("SEND_FILE, typed", iterations, () -> {
+            FileTransferRequest request = Json.read(SEND_FILE, FileTransferRequest.class);
+            sink += request.filename().length() + request.receiver().length() + request.relay().length() + request.sessionId().hashCode();
+        });
+        if (sink == 42) System.out.println(); // Just so sink is read
+    }
+
+    // What Util.getPropertyFromJson did before the shared readers
+    private static String getPropertyTheOldWay(String json, String property) throws JsonProcessingException {
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.readTree(json).path(property).asText();
+    }
+
+    private static void measure(String name, int iterations, Decode decode) throws Exception {
+        for (int i = 0; i < iterations; i++) decode.run(); // Warm up, so the JIT is done before the clock starts
+
+        long bytesBefore = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) decode.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - bytesBefore;
+
+        System.out.printf("%-26s %12.0f %12d%n", name, (double) elapsed / iterations, allocated / iterations);
+    }
+
+    private interface Decode {
+        void run() throws Exception;
+    }
+}
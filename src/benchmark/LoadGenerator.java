@@ -0,0 +1,318 @@
+package benchmark;
+
+import messages.Response;
+import messages.TextMessage;
+import util.Codec;
+import util.FrameDecoder;
+import util.Histogram;
+import util.Json;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Plays a crowd of users against a running server, without the console. Every user logs in with a generated
+// name, answers its PINGs, and a few driver threads send a weighted mix of commands at a fixed total rate
+// from random users. Messages carry the time they were sent, so every delivery is timed at the receiver,
+// and the commands that only get a response are timed until that response.
+// java benchmark.LoadGenerator [users] [commands/s] [seconds] [mix] [host] [port]
+//   mix is weights per command kind, broadcast=5,private=60,list=15,game=20 by default
+//   -Dcodec=binary makes every user switch to the binary protocol, -Ddrivers=<threads> sets the sending threads
+public class LoadGenerator {
+
+    // -----------------------------------   CONFIG   ------------------------------------------------
+
+    private static final String DEFAULT_MIX = "broadcast=5,private=60,list=15,game=20";
+    private static final int GUESS_RANGE = 50; // Same as GuessingGame's upper bound
+    private static final int RECENT_LOBBIES = 20; // Joins and guesses go to one of the latest launched lobbies
+
+    private final String host;
+    private final int port;
+    private final int userCount;
+    private final int rate;
+    private final int seconds;
+    private final Map<Kind, Integer> mix;
+    private final Codec codec = Objects.requireNonNullElse(Codec.forName(System.getProperty("codec")), Codec.TEXT);
+    private final int drivers = Integer.getInteger("drivers", 2);
+
+    // -----------------------------------   STATE   ------------------------------------------------
+
+    private final List<User> users = new ArrayList<>();
+    private final List<String> lobbies = new CopyOnWriteArrayList<>();
+    private final AtomicInteger lobbyCounter = new AtomicInteger();
+    private final Map<String, LongAdder> sent = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> deliveries = new ConcurrentHashMap<>(); // BROADCAST and PRIVATE, at the receiver
+    private final Map<String, Histogram> responses = new ConcurrentHashMap<>(); // Request to response, by command
+    private final Map<Integer, LongAdder> errors = new ConcurrentHashMap<>(); // Responses with anything but 800
+    private final LongAdder disconnected = new LongAdder();
+    private volatile boolean measuring = false;
+
+    public LoadGenerator(String host, int port, int userCount, int rate, int seconds, Map<Kind, Integer> mix) {
+        this.host = host;
+        this.port = port;
+        this.userCount = userCount;
+        this.rate = rate;
+        this.seconds = seconds;
+        this.mix = mix;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        Map<Kind, Integer> mix = parseMix(args.length > 3 ? args[3] : DEFAULT_MIX);
+        String host = args.length > 4 ? args[4] : "127.0.0.1";
+        int port = args.length > 5 ? Integer.parseInt(args[5]) : 1337;
+        new LoadGenerator(host, port, users, rate, seconds, mix).run();
+        System.exit(0); // Users still connected, their readers don't have to finish
+    }
+
+    private static Map<Kind, Integer> parseMix(String text) {
+        Map<Kind, Integer> mix = new EnumMap<>(Kind.class);
+        for (String part : text.split(",")) {
+            String[] weight = part.split("=");
+            mix.put(Kind.valueOf(weight[0].trim().toUpperCase()), Integer.parseInt(weight[1].trim()));
+        }
+        return mix;
+    }
+
+    public void run() throws Exception {
+        long loginStart = System.nanoTime();
+        for (int i = 0; i < userCount; i++) {
+            User user = new User(String.format("load_%05d", i));
+            users.add(user);
+            user.connect();
+        }
+        for (User user : users) {
+            if (!user.loggedIn.await(30, TimeUnit.SECONDS)) throw new IllegalStateException(user.username + " could not log in");
+        }
+        System.out.printf("%d users logged in over %s in %.2f s, sending %d commands/s for %d s: %s%n", users.size(),
+                codec.name().toLowerCase(), (System.nanoTime() - loginStart) / 1e9, rate, seconds, mix);
+
+        measuring = true;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> driverThreads = new ArrayList<>();
+        for (int i = 0; i < drivers; i++) driverThreads.add(Thread.ofPlatform().name("Driver_" + i).start(() -> drive(end)));
+        for (Thread driver : driverThreads) driver.join();
+        long elapsed = System.nanoTime() - start;
+        Thread.sleep(2000); // Whatever is still on its way
+        measuring = false;
+
+        report(elapsed / 1e9);
+        users.forEach(User::close);
+    }
+
+    // -----------------------------------   DRIVING   ------------------------------------------------
+
+    // Open loop: commands are due at fixed times no matter how slow the server answers, so a slow server
+    // shows up as latency instead of quietly lowering the load
+    private void drive(long end) {
+        long interval = TimeUnit.SECONDS.toNanos(1) * drivers / rate;
+        long next = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        while (next < end) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            User user = users.get(random.nextInt(users.size()));
+            int pick = random.nextInt(totalWeight);
+            for (Map.Entry<Kind, Integer> weight : mix.entrySet()) {
+                pick -= weight.getValue();
+                if (pick < 0) {
+                    weight.getKey().send(this, user, random);
+                    break;
+                }
+            }
+            next += interval;
+        }
+    }
+
+    public enum Kind {
+        BROADCAST {
+            @Override
+            void send(LoadGenerator load, User user, ThreadLocalRandom random) {
+                user.send("BROADCAST", "{\"message\":\"" + System.nanoTime() + "\"}");
+            }
+        },
+        PRIVATE {
+            @Override
+            void send(LoadGenerator load, User user, ThreadLocalRandom random) {
+                User receiver = load.users.get(random.nextInt(load.users.size()));
+                if (receiver == user) return;
+                user.send("PRIVATE", "{\"username\":\"" + receiver.username + "\",\"message\":\"" + System.nanoTime() + "\"}");
+            }
+        },
+        LIST {
+            @Override
+            void send(LoadGenerator load, User user, ThreadLocalRandom random) {
+                user.request("LIST", "");
+            }
+        },
+        // Launches a lobby now and then, otherwise joins or guesses in one of the recent ones.
+        // Plenty of those get refused (game already running, not in that game...), that's load all the same.
+        GAME {
+            @Override
+            void send(LoadGenerator load, User user, ThreadLocalRandom random) {
+                List<String> lobbies = load.lobbies;
+                int action = random.nextInt(10);
+                if (action == 0 || lobbies.isEmpty()) {
+                    String lobby = "load_" + load.lobbyCounter.incrementAndGet();
+                    lobbies.add(lobby);
+                    if (lobbies.size() > RECENT_LOBBIES) lobbies.remove(0);
+                    user.request("GAME_LAUNCH", "{\"lobby\":\"" + lobby + "\"}");
+                    return;
+                }
+                String lobby = lobbies.get(random.nextInt(lobbies.size()));
+                if (action < 4) user.request("GAME_JOIN", "{\"lobby\":\"" + lobby + "\"}");
+                else user.request("GAME_GUESS", "{\"lobby\":\"" + lobby + "\",\"guess\":" + (random.nextInt(GUESS_RANGE) + 1) + "}");
+            }
+        };
+
+        abstract void send(LoadGenerator load, User user, ThreadLocalRandom random);
+    }
+
+    // -----------------------------------   REPORT   ------------------------------------------------
+
+    private void report(double elapsedSeconds) {
+        long totalSent = sent.values().stream().mapToLong(LongAdder::sum).sum();
+        System.out.printf("%nSent %d commands in %.2f s, %.0f/s%n", totalSent, elapsedSeconds, totalSent / elapsedSeconds);
+        new TreeMap<>(sent).forEach((type, count) -> System.out.printf("  %-14s %10d%n", type, count.sum()));
+
+        long delivered = deliveries.values().stream().mapToLong(Histogram::count).sum();
+        System.out.printf("Delivered %d messages, %.0f/s%n", delivered, delivered / elapsedSeconds);
+
+        System.out.printf("%nLatency in ms      %10s %9s %9s %9s %9s %9s%n", "count", "mean", "p50", "p99", "p999", "max");
+        new TreeMap<>(deliveries).forEach((type, histogram) -> printLatency(type + " delivery", histogram));
+        new TreeMap<>(responses).forEach((type, histogram) -> printLatency(type + " response", histogram));
+
+        if (!errors.isEmpty()) {
+            System.out.print("\nRefused by the server:");
+            new TreeMap<>(errors).forEach((code, count) -> System.out.print(" " + code + "=" + count.sum()));
+            System.out.println();
+        }
+        System.out.println("Disconnected by the server: " + disconnected.sum());
+    }
+
+    private static void printLatency(String name, Histogram histogram) {
+        System.out.printf("%-22s %8d %9.3f %9.3f %9.3f %9.3f %9.3f%n", name, histogram.count(), histogram.mean() / 1e6,
+                histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6, histogram.percentile(99.9) / 1e6, histogram.max() / 1e6);
+    }
+
+    // -----------------------------------   USER   ------------------------------------------------
+
+    private class User {
+        private final String username;
+        private final CountDownLatch loggedIn = new CountDownLatch(1);
+        private final FrameDecoder decoder = new FrameDecoder(64 * 1024);
+        // Send times of the commands waiting for their response, the server answers each connection in order
+        private final Map<String, ArrayDeque<Long>> awaiting = new HashMap<>();
+        private Socket socket;
+        private OutputStream out;
+        private Codec writeCodec = Codec.TEXT;
+
+        User(String username) {
+            this.username = username;
+        }
+
+        void connect() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            Thread.ofVirtual().start(this::listen);
+        }
+
+        void send(String type, String body) {
+            if (measuring) sent.computeIfAbsent(type, k -> new LongAdder()).increment();
+            write(type, body);
+        }
+
+        // For the commands whose only answer is a response
+        synchronized void request(String type, String body) {
+            awaiting.computeIfAbsent(type, k -> new ArrayDeque<>()).add(System.nanoTime());
+            send(type, body);
+        }
+
+        private synchronized void write(String type, String body) {
+            try {
+                out.write(writeCodec.encode(type, body));
+                out.flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void listen() {
+            try {
+                InputStream in = socket.getInputStream();
+                byte[] chunk = new byte[8 * 1024];
+                int read;
+                while ((read = in.read(chunk)) != -1) decoder.feed(ByteBuffer.wrap(chunk, 0, read), this::handle);
+            } catch (IOException ignored) {
+                // Closed at the end of the run
+            }
+        }
+
+        private void handle(String type, String body) throws IOException {
+            switch (type) {
+                case "BROADCAST", "PRIVATE" -> {
+                    long sentAt = Long.parseLong(Json.read(body, TextMessage.class).message());
+                    if (measuring) deliveries.computeIfAbsent(type, k -> new Histogram()).record(System.nanoTime() - sentAt);
+                }
+                case "RESPONSE" -> handleResponse(Json.read(body, Response.class));
+                case "PING" -> write("PONG", "");
+                case "GREET" -> {
+                    if (codec == Codec.TEXT) write("LOGIN", "{\"username\":\"" + username + "\"}");
+                    else write("PROTOCOL", "{\"codec\":\"" + codec.name().toLowerCase() + "\"}");
+                }
+                case "DISCONNECTED" -> disconnected.increment();
+                default -> { /* Arrivals, game notifications and the like, nothing to measure */ }
+            }
+        }
+
+        private void handleResponse(Response<?> response) {
+            if (response.to().equals("PROTOCOL") && response.status() == 800) {
+                synchronized (this) {
+                    writeCodec = codec;
+                }
+                decoder.setCodec(codec);
+                write("LOGIN", "{\"username\":\"" + username + "\"}");
+                return;
+            }
+            if (response.to().equals("LOGIN") && loggedIn.getCount() > 0) {
+                if (response.status() == 800) loggedIn.countDown();
+                else System.err.println(username + " was refused with " + response.status());
+                return;
+            }
+            if (response.status() != 800 && measuring) errors.computeIfAbsent(response.status(), k -> new LongAdder()).increment();
+            Long sentAt;
+            synchronized (this) {
+                ArrayDeque<Long> waiting = awaiting.get(response.to());
+                sentAt = waiting == null ? null : waiting.poll();
+            }
+            if (sentAt != null && measuring) responses.computeIfAbsent(response.to(), k -> new Histogram()).record(System.nanoTime() - sentAt);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
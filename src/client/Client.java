@@ -6,11 +6,19 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import exceptions.InputArgumentMismatchException;
 import messages.*;
 
-import javax.crypto.*;
+import util.Codec;
+import util.CommandRegistry;
+import util.FrameDecoder;
+import util.FrameInflater;
+import util.Json;
+
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
-import java.security.*;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 
 import static colors.ANSIColors.*;
@@ -21,21 +29,28 @@ public class Client {
     // --------------- tools ---------------
     private Socket socket;
     private BufferedReader consoleReader;
-    private PrintWriter out;
-    private BufferedReader in;
+    private ProtocolWriter out;
+    private InputStream in;
+    private final FrameDecoder decoder = new FrameDecoder(MAX_FRAME_LENGTH);
     private ObjectMapper mapper;
     // --------------- features ---------------
     private GuessingGameManager guessingGameManager;
     private SecureManager secureManager;
     private FileTransferManager fileTransferManager;
+    private final CommandRegistry<Client> commands = new CommandRegistry<>();
     // --------------- config ---------------
 
-    private final static String SERVER_ADDRESS = "127.0.0.1";
-    private final static int SERVER_PORT = 1337;
+    private final static String SERVER_ADDRESS = System.getProperty("host", "127.0.0.1");
+    private final static int SERVER_PORT = Integer.getInteger("port", 1337); // Any node of a cluster will do
+    private final static int MAX_FRAME_LENGTH = 64 * 1024;
+    // -Dcodec=binary asks the server for the binary protocol right after its greeting
+    private final static Codec CODEC = Objects.requireNonNullElse(Codec.forName(System.getProperty("codec")), Codec.TEXT);
+    // -Dcompression=deflate asks for it too, worth it on slow links, the server may still say no
+    private final static boolean DEFLATE = "deflate".equalsIgnoreCase(System.getProperty("compression"));
 
     public Client(String address, int port) {
         try {
-            mapper = new ObjectMapper();
+            mapper = Json.MAPPER;
             socket = new Socket(address, port);
             System.out.println("Connected to the server");
 
@@ -43,15 +58,15 @@ public class Client {
             consoleReader = new BufferedReader(new InputStreamReader(System.in));
 
             // With "out" I am able to use client's console to send messages to the server's output stream
-            // "Flushing" is the process of, in my case, "sending" the message.
-            // Auto-flush ensures that once a message is received in the stream its sent in without buffering
-            // (one message sent per instance of out.print()).
-            out = new PrintWriter(socket.getOutputStream(), true);
-            // With "in" I am able to read the input stream (server messages) into the application currently running
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // Every out.println() is encoded in the agreed protocol and sent right away, without buffering
+            out = new ProtocolWriter(socket.getOutputStream(), CODEC, DEFLATE);
+            // With "in" I am able to read the input stream (server messages) into the application currently running,
+            // the decoder cuts it into messages
+            in = socket.getInputStream();
 
             guessingGameManager = new GuessingGameManager(out);
             fileTransferManager = new FileTransferManager(out, address);
+            registerCommands();
 
             System.out.println("Type \"!help\" to receive the list of commands");
             startClient();
@@ -90,9 +105,10 @@ public class Client {
         @Override
         public void run() {
             try {
-                String serverMessage;
-                while ((serverMessage = in.readLine()) != null) { // if the input stream contains any data.
-                    handleServerMessage(serverMessage);
+                byte[] chunk = new byte[8 * 1024];
+                int read;
+                while ((read = in.read(chunk)) != -1) { // if the input stream contains any data.
+                    decoder.feed(ByteBuffer.wrap(chunk, 0, read), Client.this::handleServerMessage);
                 }
             } catch (SocketException se) {
                 System.err.println("| ------------------------------------- |");
@@ -101,7 +117,7 @@ public class Client {
                 System.err.println("| Exiting...                            |");
                 System.err.println("| ------------------------------------- |");
                 System.exit(0);
-            } catch (IOException | NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException e) {
+            } catch (IOException e) {
 //                throw new RuntimeException(e);
                 System.err.println("Error in receiving message: " + e.getMessage());
             }
@@ -125,6 +141,11 @@ public class Client {
             case "!direct" -> direct(content);
             case "!secure" -> secure(content);
             case "!list" -> list();
+            case "!enter" -> out.println("JOIN_ROOM " + wrapInJson("room", content.trim()));
+            case "!exit" -> out.println("LEAVE_ROOM " + wrapInJson("room", content.trim()));
+            case "!say" -> say(content);
+            case "!history" -> history(content);
+            case "!stats" -> out.println("STATS");
             case "!create" -> create(content);
             case "!join" -> join(content);
             case "!guess" -> guess(content);
@@ -132,6 +153,7 @@ public class Client {
             case "!ls" -> showFiles();
             case "!accept" -> accept();
             case "!reject" -> reject();
+            case "!resume" -> fileTransferManager.handleResume();
             default -> System.out.println("Unknown operation");
         }
     }
@@ -143,6 +165,11 @@ public class Client {
         System.out.println("### !direct <username> <message> - sends a private message to a user");
         System.out.println("### !secure <username> <message> - send an encrypted message to another user");
         System.out.println("### !list - shows all the users that are currently online");
+        System.out.println("### !stats - shows the server's metrics, if you are one of its admins");
+        System.out.println("### !enter <room> - join a room, it is created if nobody is in it yet");
+        System.out.println("### !exit <room> - leave a room");
+        System.out.println("### !say <room> <message> - send a message to everyone in a room you are in");
+        System.out.println("### !history [#room] [before] - shows older messages of the chat or of a room you are in, page by page");
         System.out.println("### !create <lobby name> - create a lobby for guessing game");
         System.out.println("### !join <lobby name> - enter a number guessing game is one currently is active");
         System.out.println("### !guess <guess> - enter your guess for the number guessing game if you're in a game");
@@ -152,6 +179,7 @@ public class Client {
         System.out.printf("###### The file you're planning to send must be in the \"%s\" directory.\n", fileTransferManager.getFileTransferDirectory());
         System.out.println("###### When specifying the file for transmission, include only the name and extension");
         System.out.println("### !accept/reject - accept or decline the latest file transfer offered");
+        System.out.println("### !resume - get the rest of the latest file transfer that broke off");
     }
 
     private void login(String username) {
@@ -169,6 +197,42 @@ public class Client {
         } else System.out.println("Invalid message format");
     }
 
+    private void say(String data) throws JsonProcessingException {
+        String[] roomAndMessage = data.trim().split(" ", 2);
+        if (roomAndMessage.length < 2 || roomAndMessage[1].isBlank()) {
+            System.out.println("Invalid message format");
+            return;
+        }
+        out.println("ROOM_MESSAGE " + mapper.writeValueAsString(new RoomMessage(roomAndMessage[0], "", roomAndMessage[1].trim())));
+    }
+
+    private void history(String data) throws JsonProcessingException {
+        String room = "";
+        long before = 0;
+        for (String argument : data.trim().split(" ")) {
+            if (argument.startsWith("#")) room = argument.substring(1);
+            else if (!argument.isBlank()) {
+                try {
+                    before = Long.parseLong(argument);
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid history format");
+                    return;
+                }
+            }
+        }
+        out.println("HISTORY " + mapper.writeValueAsString(new HistoryRequest(room, before, 20)));
+    }
+
+    private void printHistory(Response<?> response) {
+        HistoryPage page = mapper.convertValue(response.content(), HistoryPage.class);
+        DateTimeFormatter time = DateTimeFormatter.ofPattern("dd.MM HH:mm").withZone(ZoneId.systemDefault());
+        for (HistoryEntry entry : page.entries())
+            System.out.println(time.format(Instant.ofEpochMilli(entry.time())) + (entry.room().isEmpty() ? "" : " [" + entry.room() + "]")
+                    + " [" + entry.username() + "] : " + entry.message());
+        if (page.before() >= 0)
+            System.out.println("For older messages: !history " + (page.room().isEmpty() ? "" : "#" + page.room() + " ") + page.before());
+    }
+
     private void direct(String data) throws JsonProcessingException {
         try {
             out.println("PRIVATE " + mapper.writeValueAsString(textMessageFromCommand(data)));
@@ -232,56 +296,54 @@ public class Client {
 
     // --------------------------   RECEIVED MESSAGE HANDLER   ---------------------------------------
 
-    private void handleServerMessage(String message) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
-        String[] messageParts = message.split(" ", 2);
-        String type = messageParts[0];
-        String json = messageParts.length == 2 ? messageParts[1] : "";
+    private void handleServerMessage(String type, String json) throws IOException {
+        if (!commands.dispatch(this, type, json))
+            coloredPrint(ANSI_MAGENTA, "Unknown message type or command from the server");
+    }
 
-        switch (type) {
-            case "RESPONSE" -> {
-                JavaType javaType = mapper.getTypeFactory().constructParametricType(Response.class, Object.class);
-                Response<Object> response = mapper.readValue(json, javaType);
-                handleResponseMessages(response);
-            }
-            case "DISCONNECTED" -> disconnect(json);
-            case "GREET" -> {
-                SystemMessage response = mapper.readValue(json, SystemMessage.class);
-                System.out.println(response.message());
-            }
-            case "ARRIVED" -> {
-                SystemMessage response = mapper.readValue(json, SystemMessage.class);
-                System.out.println(response.message() + " has joined!");
-            }
-            case "LEFT" -> {
-                SystemMessage response = mapper.readValue(json, SystemMessage.class);
-                System.out.println(response.message() + " has left the chatroom");
-            }
-            case "BROADCAST" -> {
-                TextMessage response = mapper.readValue(json, TextMessage.class);
-                System.out.println("[" + response.username() + "] : " + response.message());
-            }
-            case "PRIVATE" -> {
-                TextMessage response = mapper.readValue(json, TextMessage.class);
-                coloredPrint(ANSI_CYAN, "[" + response.username() + "] : " + response.message());
-            }
-            case "PING" -> out.println("PONG");
-            case "GAME_LAUNCHED" -> guessingGameManager.handleReceiveLaunched(json);
-            case "GAME_START" -> guessingGameManager.handleReceiveStart(json);
-            case "GAME_GUESSED" -> guessingGameManager.handleReceiveGuessed(json);
-            case "GAME_END" -> guessingGameManager.handleReceiveEnd(json);
-            case "GAME_FAIL" -> guessingGameManager.handleReceiveFailed(json);
-            case "SECURE" -> secureManager.handleReceiveSecure(json);
-            case "PUBLIC_KEY_REQ" -> secureManager.handleReceivePublicKeyReq(json);
-            case "PUBLIC_KEY_RES" -> secureManager.handleReceivePublicKeyRes(json);
-            case "SESSION_KEY" -> secureManager.handleReceiveSessionKey(json);
-            case "SECURE_READY" -> secureManager.handleReceiveSecureReady(json);
-            case "TRANSFER_REQUEST" -> fileTransferManager.handleReceiveTransferRequest(json);
-            case "PARSE_ERROR" -> coloredPrint(ANSI_MAGENTA, "Parse error occurred processing your message");
-            default -> coloredPrint(ANSI_MAGENTA, "Unknown message type or command from the server");
-        }
+    // Everything the server may send, looked up by opcode for each message
+    private void registerCommands() {
+        commands.register("RESPONSE", (client, json) -> {
+                    JavaType javaType = mapper.getTypeFactory().constructParametricType(Response.class, Object.class);
+                    Response<Object> response = mapper.readValue(json, javaType);
+                    handleResponseMessages(response);
+                })
+                .register("DISCONNECTED", Client::disconnect)
+                .register("GREET", SystemMessage.class, (client, response) -> {
+                    System.out.println(response.message());
+                    out.negotiate();
+                })
+                .register("ARRIVED", SystemMessage.class, (client, response) -> System.out.println(response.message() + " has joined!"))
+                .register("LEFT", SystemMessage.class, (client, response) -> System.out.println(response.message() + " has left the chatroom"))
+                .register("BROADCAST", TextMessage.class, (client, response) -> System.out.println("[" + response.username() + "] : " + response.message()))
+                .register("PRIVATE", TextMessage.class, (client, response) -> coloredPrint(ANSI_CYAN, "[" + response.username() + "] : " + response.message()))
+                .register("ROOM_MESSAGE", RoomMessage.class, (client, message) -> coloredPrint(ANSI_YELLOW, "[" + message.room() + "] " + message.username() + " : " + message.message()))
+                .register("ROOM_JOINED", RoomMessage.class, (client, message) -> System.out.println(message.username() + " has joined room " + message.room()))
+                .register("ROOM_LEFT", RoomMessage.class, (client, message) -> System.out.println(message.username() + " has left room " + message.room()))
+                .register("PING", (client, json) -> out.println("PONG"))
+                .register("GAME_LAUNCHED", (client, json) -> guessingGameManager.handleReceiveLaunched(json))
+                .register("GAME_START", (client, json) -> guessingGameManager.handleReceiveStart(json))
+                .register("GAME_GUESSED", (client, json) -> guessingGameManager.handleReceiveGuessed(json))
+                .register("GAME_END", (client, json) -> guessingGameManager.handleReceiveEnd(json))
+                .register("GAME_FAIL", (client, json) -> guessingGameManager.handleReceiveFailed(json))
+                .register("SECURE", (client, json) -> secureManager.handleReceiveSecure(json))
+                .register("PUBLIC_KEY_REQ", (client, json) -> secureManager.handleReceivePublicKeyReq(json))
+                .register("PUBLIC_KEY_RES", (client, json) -> secureManager.handleReceivePublicKeyRes(json))
+                .register("SESSION_KEY", (client, json) -> secureManager.handleReceiveSessionKey(json))
+                .register("SECURE_READY", (client, json) -> secureManager.handleReceiveSecureReady(json))
+                .register("TRANSFER_REQUEST", (client, json) -> fileTransferManager.handleReceiveTransferRequest(json))
+                .register("TRANSFER_RESUME", (client, json) -> fileTransferManager.handleReceiveTransferResume(json))
+                .register("PARSE_ERROR", (client, json) -> coloredPrint(ANSI_MAGENTA, "Parse error occurred processing your message"))
+                .register("UNKNOWN_ACTION", (client, json) -> {
+                    // A server that predates the PROTOCOL command, it stays text then
+                    if (out.isNegotiating()) out.negotiated(null, false);
+                    else coloredPrint(ANSI_MAGENTA, "Unknown message type or command from the server");
+                });
     }
 
     private void handleResponseMessages(Response<?> response) {
+        if (response.to().equals("PROTOCOL") && response.status() != 800) out.negotiated(null, false);
+        if (response.to().equals("SEND_FILE") && response.status() != 800) fileTransferManager.handleRefusedSendFile();
         if (response.status() == 800) {
             successfulMessagesHandler(response);
             return;
@@ -322,14 +384,32 @@ public class Client {
             // general
             case "LOGIN" -> coloredPrint(ANSI_CYAN, "Logged in successfully!");
             case "LIST" -> System.out.println(response.content());
+            case "STATS" -> System.out.print(response.content());
+            case "PROTOCOL" -> {
+                // Everything after this response comes in the new codec, and the server reads ours in it already.
+                // "binary+deflate" means deflated as well, both ways.
+                String[] agreement = ((String) response.content()).split("\\+");
+                Codec agreed = Codec.forName(agreement[0]);
+                boolean deflated = agreement.length == 2 && agreement[1].equals("deflate");
+                if (agreed != null) decoder.setCodec(agreed);
+                if (deflated) decoder.setInflater(new FrameInflater());
+                out.negotiated(agreed, deflated);
+            }
+            case "JOIN_ROOM" -> coloredPrint(ANSI_CYAN, "You are in room " + response.content() + " now");
+            case "LEAVE_ROOM" -> coloredPrint(ANSI_CYAN, "You have left room " + response.content());
+            case "ROOM_MESSAGE" -> { /*NOOP*/ }
+            case "HISTORY" -> printHistory(response);
             case "BROADCAST" -> { /*NOOP*/ } // There is nothing useful to signify if received OK from server at this point.
-            case "PRIVATE" -> { /*NOOP*/ } // Maybe "received" could have been a thing, but I don't want to amke the CLI messy
+            case "PRIVATE", "SECURE" -> { // Maybe "received" could have been a thing, but I don't want to amke the CLI messy
+                if ("QUEUED".equals(response.content())) coloredPrint(ANSI_CYAN, "They are offline, they will get it when they log in");
+            }
             // game
             case "GAME_LAUNCH" -> guessingGameManager.handleSuccessfulLaunch();
             case "GAME_JOIN" -> guessingGameManager.handleSuccessfulJoin(response);
             case "GAME_GUESS" -> guessingGameManager.handleSuccessfulGuess(response);
             // file
             case "TRANSFER_RESPONSE" -> coloredPrint(ANSI_GREEN, "Your response was sent to the sender");
+            case "TRANSFER_RESUME" -> coloredPrint(ANSI_GREEN, "Asked the sender for the rest of the file");
             case "SEND_FILE" -> fileTransferManager.handleResponseSendFile(response);
             // unknown
             default -> System.out.println("OK status received. Unknown destination of the response: " + response.to());
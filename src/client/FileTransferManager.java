@@ -4,26 +4,46 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import messages.FileTransferRequest;
 import messages.FileTransferResponse;
+import messages.FileTransferResume;
 import messages.Response;
+import util.Json;
 
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import static colors.ANSIColors.*;
 
 public class FileTransferManager {
 
-    private final PrintWriter out;
-    private final ObjectMapper mapper = new ObjectMapper();
+    private final ProtocolWriter out;
+    private final ObjectMapper mapper = Json.MAPPER;
     // --------------- props ----------------
     private FileTransferRequest latestFTR;
-    private File latestSelectedFile;
+    // Transfers offered by this client, kept so their receivers can ask for the rest after an interruption. A finished,
+    // rejected or refused one is dropped, of those that broke off only the latest MAX_OUTGOING are kept.
+    private final Map<UUID, Outgoing> outgoing = Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Outgoing> eldest) {
+            return size() > MAX_OUTGOING;
+        }
+    });
+    private final Queue<UUID> offers = new ConcurrentLinkedQueue<>(); // Sent, the server hasn't answered them yet
+    private volatile Incoming interrupted; // The latest incoming transfer that broke off, !resume picks it up
     private String SERVER_ADDRESS = "127.0.0.1";
-    private final int FILE_TRANSFER_PORT = 1338;
+    private final int FILE_TRANSFER_PORT = Integer.getInteger("fileTransferPort", 1338);
 
     // --------------- config ---------------
 
@@ -32,8 +52,29 @@ public class FileTransferManager {
     // ^^^ THAT I PUT OUTSIDE THE INTELLIJ PROJECT. REASON FOR THAT IS UNFATHOMABLY ^^^
     // ^^^ LARGE BUILD TIMES. MAYBE SHOULD HAVE CONSIDERED AN .env OR USING A PATH VARIABLE^^^
     private final static String EXTENSION_SPLITTING_REGEXP = "\\.(?=[^.]*$)";
-
-    public FileTransferManager(PrintWriter out, String address) {
+    // A file is split into STREAMS ranges, each sent over its own connection as [long offset][int length][bytes][digest]
+    // chunks. The digest trailing a chunk is taken while the sender reads it, the receiver takes its own while the bytes
+    // come in, so the file is read once and written once and checked the moment its last chunk lands.
+    // The receiver confirms a range up to the end of its last chunk that matched, that is where the stream picks up again when resumed.
+    private final static int CHUNK_SIZE = 1024 * 1024;
+    private final static int CHUNK_HEADER = 8 + 4;
+    private final static String CHUNK_DIGEST = "MD5";
+    private final static int CHUNK_TRAILER = 16; // Bytes of an MD5
+    private final static int STREAMS = Math.max(1, Math.min(FileTransferRequest.MAX_STREAMS,
+            Integer.getInteger("transferStreams", 4))); // At most, a small file needs fewer
+    private final static int MAX_OUTGOING = 64;
+    // When both sides can, chunks are deflated on the way out and inflated on the way in, the digest is still of the file's
+    // bytes. Then the header also says how many bytes follow it, [long offset][int length][int stored], and a chunk with
+    // stored == length went as it is. Logs and CSVs shrink a lot, archives and media not at all, so the first
+    // COMPRESSION_SAMPLE bytes of a chunk are tried first and a chunk that doesn't get below COMPRESSION_WORTH that way
+    // isn't deflated at all.
+    private final static String COMPRESSION = System.getProperty("transferCompression", "deflate"); // "none" turns it off
+    private final static int COMPRESSION_LEVEL = Integer.getInteger("transferCompressionLevel", Deflater.BEST_SPEED);
+    private final static int COMPRESSION_SAMPLE = 64 * 1024;
+    private final static double COMPRESSION_WORTH = 0.9; // Of the size, what deflating has to get under to be worth it
+    private final static int STORED_LENGTH = 4;
+
+    public FileTransferManager(ProtocolWriter out, String address) {
         this.SERVER_ADDRESS = address;
         this.out = out;
     }
@@ -47,9 +88,10 @@ public class FileTransferManager {
                 System.out.println("Nothing to approve");
                 return;
             }
-            out.println("TRANSFER_RESPONSE " + mapper.writeValueAsString(new FileTransferResponse(true, "this.username", latestFTR.sessionId())));
+            boolean deflated = canDeflate() && "deflate".equals(latestFTR.compression());
+            out.println("TRANSFER_RESPONSE " + mapper.writeValueAsString(new FileTransferResponse(true, "this.username", latestFTR.sessionId(), deflated ? "deflate" : "")));
             System.out.println("Exchange initiated");
-            initFileTransfer(latestFTR.sessionId());
+            initFileTransfer(new Incoming(latestFTR, deflated), true);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
@@ -61,7 +103,7 @@ public class FileTransferManager {
                 System.out.println("Nothing to reject");
                 return;
             }
-            out.println("TRANSFER_RESPONSE " + mapper.writeValueAsString(new FileTransferResponse(false, "this.username", latestFTR.sessionId())));
+            out.println("TRANSFER_RESPONSE " + mapper.writeValueAsString(new FileTransferResponse(false, "this.username", latestFTR.sessionId(), "")));
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
@@ -77,22 +119,40 @@ public class FileTransferManager {
 
             String filename = params[0].trim();
             String receiver = params[1].trim();
-            latestSelectedFile = new File(String.format("%s/%s", FILE_TRANSFER_DIRECTORY, filename));
-            if (!latestSelectedFile.exists()) {
+            File file = new File(String.format("%s/%s", FILE_TRANSFER_DIRECTORY, filename));
+            if (!file.exists()) {
                 coloredPrint(ANSI_MAGENTA, "FILE WITH NAME " + filename + " DOES NOT EXIST");
                 return;
             }
 
-            System.out.println("Loading your file...");
-            String checksum = calculateChecksum(latestSelectedFile);
-
-            FileTransferRequest ftr = new FileTransferRequest(filename, receiver, "", UUID.randomUUID(), checksum);
+            long size = file.length();
+            int streams = (int) Math.max(1, Math.min(STREAMS, (size + CHUNK_SIZE - 1) / CHUNK_SIZE));
+            FileTransferRequest ftr = new FileTransferRequest(filename, receiver, "", UUID.randomUUID(), "", size, streams, canDeflate() ? "deflate" : "");
+            outgoing.put(ftr.sessionId(), new Outgoing(file, receiver, size, streams, false, new Ratio()));
+            offers.add(ftr.sessionId());
             out.println("SEND_FILE " + mapper.writeValueAsString(ftr));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    // Asks the sender of the latest interrupted transfer for what is missing, and takes it in
+    public void handleResume() {
+        Incoming incoming = interrupted;
+        if (incoming == null) {
+            System.out.println("Nothing to resume");
+            return;
+        }
+        interrupted = null;
+        try {
+            FileTransferRequest request = incoming.request;
+            out.println("TRANSFER_RESUME " + mapper.writeValueAsString(new FileTransferResume(request.sessionId(), request.sender(), incoming.confirmed.clone())));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+        initFileTransfer(incoming, false);
+    }
+
     public void handleShowFilesInDirectory() {
         File directory = new File(FILE_TRANSFER_DIRECTORY);
 
@@ -114,6 +174,10 @@ public class FileTransferManager {
     public void handleReceiveTransferRequest(String json) {
         try {
             FileTransferRequest ftr = mapper.readValue(json, FileTransferRequest.class);
+            if (ftr.streams() < 1 || ftr.streams() > FileTransferRequest.MAX_STREAMS) {
+                coloredPrint(ANSI_RED, ftr.sender() + " offered " + ftr.filename() + " over " + ftr.streams() + " streams, ignoring it");
+                return;
+            }
             coloredPrint(ANSI_GREEN, "You are receiving an inquiry for file exchange from " + ftr.sender() + " (" + ftr.filename() + ")");
             latestFTR = ftr;
         } catch (JsonProcessingException e) {
@@ -121,72 +185,276 @@ public class FileTransferManager {
         }
     }
 
+    public void handleReceiveTransferResume(String json) {
+        try {
+            FileTransferResume resume = mapper.readValue(json, FileTransferResume.class);
+            Outgoing transfer = outgoing.get(resume.sessionId());
+            if (transfer == null || !transfer.receiver().equals(resume.username()) || resume.offsets().length != transfer.streams()) {
+                coloredPrint(ANSI_RED, resume.username() + " asked to resume a transfer you don't have");
+                return;
+            }
+            long[] from = new long[transfer.streams()];
+            for (int stream = 0; stream < from.length; stream++) {
+                long start = rangeStart(transfer.size(), transfer.streams(), stream), end = rangeStart(transfer.size(), transfer.streams(), stream + 1);
+                from[stream] = Math.max(start, Math.min(end, resume.offsets()[stream]));
+            }
+            coloredPrint(ANSI_GREEN, resume.username() + " is resuming " + transfer.file().getName() + ", " + formatFileSize(transfer.size() - received(transfer.size(), from)) + " to go");
+            initFileTransfer(resume.sessionId(), transfer, from);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     // ------------------------   SUCCESSFUL RESPONSE HANDLERS   -------------------------------------
 
     public void handleResponseSendFile(Response<?> response) {
         if (response.content().equals("OK")) {
+            offers.poll(); // The server answers the offers in the order they were sent
             coloredPrint(ANSI_GREEN, "Request sent to the user");
             return;
         }
         try {
             FileTransferResponse ftr = mapper.readValue((String) response.content(), FileTransferResponse.class);
+            Outgoing transfer = outgoing.get(ftr.sessionId());
+            if (transfer == null) return;
             if (ftr.status()) {
                 coloredPrint(ANSI_GREEN, ftr.sender() + " has ACCEPTED your file transfer inquiry! Preparing transmission...");
+                // Only now is it known whether the receiver takes deflated chunks, a resume goes the same way
+                transfer = new Outgoing(transfer.file(), transfer.receiver(), transfer.size(), transfer.streams(),
+                        canDeflate() && "deflate".equals(ftr.compression()), transfer.ratio());
+                outgoing.put(ftr.sessionId(), transfer);
                 System.out.println("Exchange initiated");
-                initFileTransfer(ftr.sessionId(), latestSelectedFile);
-            } else coloredPrint(ANSI_GREEN, ftr.sender() + " has REJECTED your file transfer inquiry.");
+                long[] from = new long[transfer.streams()];
+                for (int stream = 0; stream < from.length; stream++) from[stream] = rangeStart(transfer.size(), transfer.streams(), stream);
+                initFileTransfer(ftr.sessionId(), transfer, from);
+            } else {
+                coloredPrint(ANSI_GREEN, ftr.sender() + " has REJECTED your file transfer inquiry.");
+                outgoing.remove(ftr.sessionId());
+            }
         } catch (JsonProcessingException e) {
             coloredPrint(ANSI_RED, "Failed to parse the response to the file transfer response format");
         }
     }
 
-    // -------------------------------------   UTIL   ------------------------------------------------
+    // The server refused the oldest offer it hadn't answered yet, its receiver will never ask for it
+    public void handleRefusedSendFile() {
+        UUID sessionId = offers.poll();
+        if (sessionId != null) outgoing.remove(sessionId);
+    }
 
-    private void initFileTransfer(UUID sessionId, File file) {
-        try (Socket senderSocket = new Socket(SERVER_ADDRESS, FILE_TRANSFER_PORT)) {
-            OutputStream output = senderSocket.getOutputStream();
+    // -------------------------------------   UTIL   ------------------------------------------------
 
-            byte[] senderData = createByteArray('S', sessionId);
-            output.write(senderData);
+    // Every unfinished stream from where it is, each on its own connection and thread, off the thread that started it
+    private void initFileTransfer(UUID sessionId, Outgoing transfer, long[] from) {
+        Thread.ofPlatform().name("FileSender").start(() -> {
+            List<Thread> streams = new ArrayList<>();
+            boolean[] sent = new boolean[transfer.streams()];
+            for (int stream = 0; stream < transfer.streams(); stream++) {
+                int index = stream;
+                long end = rangeStart(transfer.size(), transfer.streams(), stream + 1);
+                if (from[stream] >= end) {
+                    sent[stream] = true;
+                    continue;
+                }
+                streams.add(Thread.ofPlatform().name("FileSender_" + stream).start(() -> sent[index] = sendRange(sessionId, index, transfer, from[index], end)));
+            }
+            if (join(streams) && allTrue(sent)) {
+                outgoing.remove(sessionId);
+                coloredPrint(ANSI_YELLOW, "Finished sending your file!" + transfer.ratio().describe(transfer.deflated()));
+            } else coloredPrint(ANSI_RED, "Sending " + transfer.file().getName() + " broke off, " + transfer.receiver() + " can resume it");
+        });
+    }
 
-            try (FileInputStream fs = new FileInputStream(file)) {
-                fs.transferTo(output);
+    private boolean sendRange(UUID sessionId, int stream, Outgoing transfer, long position, long end) {
+        Deflater deflater = transfer.deflated() ? new Deflater(COMPRESSION_LEVEL, true) : null; // Raw deflate, the digests check it
+        try (SocketChannel senderChannel = SocketChannel.open(new InetSocketAddress(SERVER_ADDRESS, FILE_TRANSFER_PORT));
+             FileChannel fileChannel = FileChannel.open(transfer.file().toPath(), StandardOpenOption.READ)) {
+            writeFully(senderChannel, ByteBuffer.wrap(createByteArray('S', sessionId, stream)));
+
+            // The bytes have to pass through here for the digest anyway, so it is one read into a buffer and one gathering write
+            MessageDigest digest = MessageDigest.getInstance(CHUNK_DIGEST);
+            ByteBuffer header = ByteBuffer.allocate(deflater == null ? CHUNK_HEADER : CHUNK_HEADER + STORED_LENGTH);
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            ByteBuffer deflated = deflater == null ? null : ByteBuffer.allocate(CHUNK_SIZE);
+            while (position < end) {
+                int length = (int) Math.min(CHUNK_SIZE, end - position);
+                chunk.clear().limit(length);
+                while (chunk.hasRemaining()) {
+                    if (fileChannel.read(chunk, position + chunk.position()) == -1) throw new EOFException("The file got shorter while sending it");
+                }
+                digest.update(chunk.array(), 0, length);
+                header.clear().putLong(position).putInt(length);
+                ByteBuffer body = chunk.flip();
+                if (deflater != null) {
+                    int stored = deflate(deflater, chunk.array(), length, deflated.array());
+                    if (stored < length) body = deflated.clear().limit(stored);
+                    header.putInt(stored);
+                    transfer.ratio().add(length, stored);
+                }
+                writeFully(senderChannel, header.flip(), body, ByteBuffer.wrap(digest.digest()));
+                position += length;
             }
-            coloredPrint(ANSI_YELLOW, "Finished sending your file!");
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            return true;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.err.println("Stream " + stream + " of your file broke off at " + position + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (deflater != null) deflater.end();
         }
     }
 
-    private void initFileTransfer(UUID sessionId) {
-        try (Socket receiverSocket = new Socket(SERVER_ADDRESS, FILE_TRANSFER_PORT)) {
-            OutputStream output = receiverSocket.getOutputStream();
-            InputStream input = receiverSocket.getInputStream();
-
-            byte[] receiverData = createByteArray('R', sessionId);
-            output.write(receiverData);
-            output.flush();
+    // How many bytes of out the chunk deflated to, or length when that isn't worth it. A sample goes first, so an
+    // incompressible chunk costs a sixteenth of deflating it whole.
+    private static int deflate(Deflater deflater, byte[] in, int length, byte[] out) {
+        if (length > COMPRESSION_SAMPLE && deflate(deflater, in, COMPRESSION_SAMPLE, out, COMPRESSION_SAMPLE) < 0) return length;
+        int stored = deflate(deflater, in, length, out, length);
+        return stored < 0 ? length : stored;
+    }
 
-            String[] filename = latestFTR.filename().split(EXTENSION_SPLITTING_REGEXP);
-            File file = new File(String.format("%s/%s_new.%s", FILE_TRANSFER_DIRECTORY, filename[0], filename[1]));
+    // -1 when it doesn't fit under COMPRESSION_WORTH of length
+    private static int deflate(Deflater deflater, byte[] in, int length, byte[] out, int room) {
+        int limit = (int) (room * COMPRESSION_WORTH);
+        deflater.reset();
+        deflater.setInput(in, 0, length);
+        deflater.finish();
+        int stored = 0;
+        while (!deflater.finished() && stored < limit) stored += deflater.deflate(out, stored, limit - stored);
+        return deflater.finished() ? stored : -1;
+    }
 
-            try (FileOutputStream fo = new FileOutputStream(file)) {
-                input.transferTo(fo);
+    // The sender may be connected to another node of a cluster, then the request says where its relay is.
+    // A fresh transfer starts the file over, a resumed one writes the missing ranges into what is there.
+    private void initFileTransfer(Incoming incoming, boolean fresh) {
+        FileTransferRequest request = incoming.request;
+        String relay = request.relay();
+        InetSocketAddress relayAddress = relay == null || relay.isBlank()
+                ? new InetSocketAddress(SERVER_ADDRESS, FILE_TRANSFER_PORT)
+                : new InetSocketAddress(relay.substring(0, relay.lastIndexOf(':')), Integer.parseInt(relay.substring(relay.lastIndexOf(':') + 1)));
+        Thread.ofPlatform().name("FileReceiver").start(() -> {
+            List<Thread> streams = new ArrayList<>();
+            try (FileChannel fileChannel = fresh
+                    ? FileChannel.open(incoming.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                    : FileChannel.open(incoming.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                for (int stream = 0; stream < request.streams(); stream++) {
+                    int index = stream;
+                    if (incoming.confirmed[stream] < rangeStart(request.size(), request.streams(), stream + 1))
+                        streams.add(Thread.ofPlatform().name("FileReceiver_" + stream).start(() -> receiveRange(incoming, index, fileChannel, relayAddress)));
+                }
+                join(streams);
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                System.err.println("Could not write " + incoming.file + ": " + e.getMessage());
             }
 
-            System.out.println("Finished the file transfer!");
-            System.out.println("Let us see if the file is intact...");
-            if (latestFTR.checksum().equals(calculateChecksum(file)))
-                coloredPrint(ANSI_CYAN, "File is intact!");
-            else
-                System.err.println("The file got corrupted during transfer, please try again.");
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            long received = received(request.size(), incoming.confirmed);
+            if (received < request.size()) {
+                interrupted = incoming;
+                coloredPrint(ANSI_RED, "The file transfer broke off at " + formatFileSize(received) + " of " + formatFileSize(request.size()) + ", !resume to get the rest");
+                return;
+            }
+            System.out.println("Finished the file transfer!" + incoming.ratio.describe(incoming.deflated));
+            coloredPrint(ANSI_CYAN, "File is intact!"); // Every chunk matched its digest on the way in
+        });
+    }
+
+    // A chunk is only written once its trailer matches, one that doesn't ends the stream there and is sent again on resume
+    private void receiveRange(Incoming incoming, int stream, FileChannel fileChannel, InetSocketAddress relayAddress) {
+        FileTransferRequest request = incoming.request;
+        long end = rangeStart(request.size(), request.streams(), stream + 1);
+        Inflater inflater = incoming.deflated ? new Inflater(true) : null;
+        try (SocketChannel receiverChannel = SocketChannel.open(relayAddress)) {
+            writeFully(receiverChannel, ByteBuffer.wrap(createByteArray('R', request.sessionId(), stream)));
+
+            MessageDigest digest = MessageDigest.getInstance(CHUNK_DIGEST);
+            ByteBuffer header = ByteBuffer.allocate(inflater == null ? CHUNK_HEADER : CHUNK_HEADER + STORED_LENGTH);
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            ByteBuffer deflated = inflater == null ? null : ByteBuffer.allocate(CHUNK_SIZE);
+            ByteBuffer trailer = ByteBuffer.allocate(CHUNK_TRAILER);
+            while (incoming.confirmed[stream] < end) {
+                readFully(receiverChannel, header.clear());
+                long offset = header.flip().getLong();
+                int length = header.getInt();
+                int stored = inflater == null ? length : header.getInt();
+                if (offset != incoming.confirmed[stream] || length <= 0 || length > CHUNK_SIZE || offset + length > end || stored <= 0 || stored > length)
+                    throw new IOException("Chunk at " + offset + " of " + length + " bytes doesn't follow " + incoming.confirmed[stream]);
+                if (stored == length) {
+                    readFully(receiverChannel, chunk.clear().limit(length));
+                } else {
+                    readFully(receiverChannel, deflated.clear().limit(stored));
+                    inflate(inflater, deflated.array(), stored, chunk.array(), length);
+                    chunk.clear().position(length);
+                }
+                incoming.ratio.add(length, stored);
+                readFully(receiverChannel, trailer.clear());
+                digest.update(chunk.array(), 0, length);
+                if (!MessageDigest.isEqual(digest.digest(), trailer.array()))
+                    throw new IOException("The chunk at " + offset + " got corrupted during transfer");
+                chunk.flip();
+                while (chunk.hasRemaining()) fileChannel.write(chunk, offset + chunk.position());
+                incoming.confirmed[stream] = offset + length;
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.err.println("Stream " + stream + " broke off at " + incoming.confirmed[stream] + ": " + e.getMessage());
+        } finally {
+            if (inflater != null) inflater.end();
+        }
+    }
+
+    // A chunk that doesn't inflate to exactly its length is as broken as one that doesn't match its digest
+    private static void inflate(Inflater inflater, byte[] in, int stored, byte[] out, int length) throws IOException {
+        inflater.reset();
+        inflater.setInput(in, 0, stored);
+        try {
+            int inflated = 0;
+            while (!inflater.finished() && inflated < length) {
+                int n = inflater.inflate(out, inflated, length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                inflated += n;
+            }
+            if (!inflater.finished() || inflated != length) throw new IOException("A chunk didn't inflate to its " + length + " bytes");
+        } catch (DataFormatException e) {
+            throw new IOException("A chunk didn't inflate: " + e.getMessage());
+        }
+    }
+
+    // Where the range of a stream starts, whole chunks each, the one past the last stream is the size of the file
+    private static long rangeStart(long size, int streams, int stream) {
+        long chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        long chunksPerStream = (chunks + streams - 1) / streams;
+        return Math.min(size, stream * chunksPerStream * CHUNK_SIZE);
+    }
+
+    // Bytes in the confirmed part of every range
+    private static long received(long size, long[] confirmed) {
+        long received = 0;
+        for (int stream = 0; stream < confirmed.length; stream++) received += confirmed[stream] - rangeStart(size, confirmed.length, stream);
+        return received;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer... buffers) throws IOException {
+        while (buffers[buffers.length - 1].hasRemaining()) channel.write(buffers);
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) throw new EOFException("The sender stopped before the end of the range");
         }
     }
 
+    private static boolean join(List<Thread> threads) {
+        try {
+            for (Thread thread : threads) thread.join();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean allTrue(boolean[] values) {
+        for (boolean value : values) if (!value) return false;
+        return true;
+    }
+
     private static byte[] convertUUIDToBytes(UUID uuid) {
 //        ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
 //        bb.putLong(uuid.getMostSignificantBits());
@@ -195,43 +463,18 @@ public class FileTransferManager {
         return uuid.toString().getBytes();
     }
 
-    private byte[] createByteArray(char letter, UUID uuid) throws IOException {
+    private byte[] createByteArray(char letter, UUID uuid, int stream) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         // Write Letter
         outputStream.write((byte) letter);
         // Write UUID
         byte[] uuidBytes = convertUUIDToBytes(uuid);
         outputStream.write(uuidBytes);
+        // Write the stream, the relay pairs every stream of a session on its own
+        outputStream.write(stream);
         return outputStream.toByteArray();
     }
 
-    private String calculateChecksum(File file) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("MD5");
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] byteArray = new byte[1024];
-                int bytesCount;
-
-                // previously I have received a funny OutOfMemoryException because calculating the
-                // checksum of a chonker of 6GB has proven problematic for readAllBytes of Files util
-                // takes a shitton of time for large files, but hey, it is what it is.
-                while ((bytesCount = fis.read(byteArray)) != -1) {
-                    digest.update(byteArray, 0, bytesCount);
-                }
-            }
-
-            byte[] bytes = digest.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : bytes) {
-                sb.append(String.format("%02x", b));
-            }
-
-            return sb.toString();
-        } catch (NoSuchAlgorithmException | IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     private void printFileDetails(File file) {
         SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
 
@@ -254,6 +497,48 @@ public class FileTransferManager {
         }
     }
 
+    // ----------------------------------   TRANSFERS   ------------------------------------------------
+
+    private static boolean canDeflate() {
+        return COMPRESSION.equals("deflate");
+    }
+
+    private record Outgoing(File file, String receiver, long size, int streams, boolean deflated, Ratio ratio) { }
+
+    private static class Incoming {
+        private final FileTransferRequest request;
+        private final boolean deflated;
+        private final Ratio ratio = new Ratio();
+        private final File file;
+        private final long[] confirmed; // Per stream, everything from the start of its range up to here is written
+
+        private Incoming(FileTransferRequest request, boolean deflated) {
+            this.request = request;
+            this.deflated = deflated;
+            String[] filename = request.filename().split(EXTENSION_SPLITTING_REGEXP);
+            this.file = new File(String.format("%s/%s_new.%s", FILE_TRANSFER_DIRECTORY, filename[0], filename[1]));
+            this.confirmed = new long[request.streams()];
+            for (int stream = 0; stream < confirmed.length; stream++) confirmed[stream] = rangeStart(request.size(), request.streams(), stream);
+        }
+    }
+
+    // The bytes of the file against the bytes that went over the wire for them, all streams of a transfer together
+    private static class Ratio {
+        private final LongAdder raw = new LongAdder();
+        private final LongAdder stored = new LongAdder();
+
+        private void add(int raw, int stored) {
+            this.raw.add(raw);
+            this.stored.add(stored);
+        }
+
+        private String describe(boolean deflated) {
+            long raw = this.raw.sum();
+            if (!deflated || raw == 0) return "";
+            return String.format(" (deflated to %.0f%%, %s for %s)", 100.0 * stored.sum() / raw, formatFileSize(stored.sum()), formatFileSize(raw));
+        }
+    }
+
     // ----------------------------------   GETTERS   ------------------------------------------------
 
     public String getFileTransferDirectory() {
@@ -5,8 +5,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import messages.GameGuess;
 import messages.Leaderboard;
 import messages.Response;
+import util.Json;
 
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -15,14 +15,14 @@ import static colors.ANSIColors.*;
 import static util.Util.*;
 
 public class GuessingGameManager {
-    private final PrintWriter out;
-    private final ObjectMapper mapper = new ObjectMapper();
+    private final ProtocolWriter out;
+    private final ObjectMapper mapper = Json.MAPPER;
 
     // --------------- props ----------------
 
     private String gameLobby = "";
 
-    public GuessingGameManager(PrintWriter out) {
+    public GuessingGameManager(ProtocolWriter out) {
         this.out = out;
     }
 
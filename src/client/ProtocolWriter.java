@@ -0,0 +1,75 @@
+package client;
+
+import util.Codec;
+import util.FrameDeflater;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// What the client and its managers send their commands through. Takes the same "TYPE json" lines
+// the PrintWriter used to, and encodes them in whatever codec was agreed on with the server.
+public class ProtocolWriter {
+    private final OutputStream out;
+    private final Codec wanted;
+    private final boolean deflateWanted;
+    private Codec codec = Codec.TEXT;
+    private FrameDeflater deflater; // Once the server agreed on deflate, every line is a sync flushed batch of its own
+    // Nothing goes out between connecting and the server answering the PROTOCOL command,
+    // otherwise a command typed early could end up in front of it
+    private boolean negotiating;
+
+    public ProtocolWriter(OutputStream out, Codec wanted, boolean deflateWanted) {
+        this.out = out;
+        this.wanted = wanted;
+        this.deflateWanted = deflateWanted;
+        this.negotiating = wanted != Codec.TEXT || deflateWanted;
+    }
+
+    public synchronized void println(String line) {
+        while (negotiating) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        String[] parts = line.split(" ", 2);
+        write(parts[0], parts.length == 2 ? parts[1] : "");
+    }
+
+    // Called once the GREET is in. Doesn't wait for the answer, it is read by the same thread that calls this.
+    public synchronized void negotiate() {
+        if (negotiating) write("PROTOCOL", "{\"codec\":\"" + wanted.name().toLowerCase() + "\""
+                + (deflateWanted ? ",\"compression\":\"deflate\"" : "") + "}");
+    }
+
+    // The server switches right after the response, so does the writer. Rejected keeps things as they were.
+    public synchronized void negotiated(Codec agreed, boolean deflate) {
+        if (!negotiating) return;
+        if (agreed != null) codec = agreed;
+        if (deflate) deflater = new FrameDeflater();
+        negotiating = false;
+        notifyAll();
+    }
+
+    public synchronized boolean isNegotiating() {
+        return negotiating;
+    }
+
+    private void write(String type, String body) {
+        try {
+            byte[] encoded = codec.encode(type, body);
+            if (deflater == null) out.write(encoded);
+            else {
+                deflater.write(encoded);
+                ByteBuffer synced = deflater.sync();
+                out.write(synced.array(), 0, synced.remaining());
+            }
+            out.flush();
+        } catch (IOException ignored) {
+            // Same as with the PrintWriter before, the Listener is the one that finds out about a closed socket
+        }
+    }
+}
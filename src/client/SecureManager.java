@@ -5,10 +5,10 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import exceptions.InputArgumentMismatchException;
 import messages.KeyExchange;
 import messages.TextMessage;
+import util.Json;
 
 import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.PrintWriter;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
@@ -21,15 +21,15 @@ import static util.Util.*;
 
 public class SecureManager {
 
-    private final ObjectMapper mapper = new ObjectMapper();
+    private final ObjectMapper mapper = Json.MAPPER;
     private final PublicKey publicKey;
     private final PrivateKey privateKey;
-    private final PrintWriter out;
+    private final ProtocolWriter out;
     private String secureMessageBuffer = "";
     private final Map<String, SecretKey> usernameToSessionKey = new HashMap<>();
 
     // The constructor creates a pair unique per manager on init
-    public SecureManager(PrintWriter out) {
+    public SecureManager(ProtocolWriter out) {
         this.out = out;
         try {
             KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
@@ -123,7 +123,7 @@ public class SecureManager {
 
     // --------------------------------   ENCRYPTION UTILS   -------------------------------------------
 
-    private String aesEncrypt(String input, SecretKey key) {
+    public static String aesEncrypt(String input, SecretKey key) {
         // I am using ECB (Electronic CodeBook), as all I want to do is to hide the contents
         // of the message from the server side. My concern is no necessarily security, but
         // rather privacy over admin supervision. Surely, if issues with messages getting
@@ -143,7 +143,7 @@ public class SecureManager {
         }
     }
 
-    private String aesDecrypt(String cipherText, SecretKey key) {
+    public static String aesDecrypt(String cipherText, SecretKey key) {
         try {
             Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
             cipher.init(Cipher.DECRYPT_MODE, key);
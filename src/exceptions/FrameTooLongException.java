@@ -0,0 +1,9 @@
+package exceptions;
+
+import java.io.IOException;
+
+public class FrameTooLongException extends IOException {
+    public FrameTooLongException(int maxLength) {
+        super("Frame is longer than the allowed " + maxLength + " bytes");
+    }
+}
@@ -0,0 +1,232 @@
+package features;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+// Decides when the relay threads may pass on what they read, so transfers share the node's bandwidth fairly and leave
+// the chat alone. Every session is one flow, however many streams it has. Flows waiting for bandwidth are served by
+// deficit round robin: every round a flow may send QUANTUM bytes times its weight, so a big upload gets its share and
+// no more, and a small one is never stuck behind it.
+// The ceilings are token buckets: -DtransferRate for the whole node and -DtransferUserRate for everything one user
+// sends. Chat bytes are taken out of the node's bucket before any transfer gets some, chat never waits for them,
+// transfers run on what is left. -DtransferWeights=alice:4,bob:2 gives the sessions of some users a bigger share.
+// Without any ceiling nothing waits and nothing is locked.
+public class Bandwidth {
+
+    public static final int QUANTUM = 64 * 1024; // Bytes a flow of weight 1 may send per round, the most asked for at once
+    private static final long MIN_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final TokenBucket node; // Null without a ceiling
+    private final long userRate; // 0 without a ceiling
+    private final Map<String, Integer> weights;
+    private final LongSupplier chatBytes; // Moved by the chat protocol so far, they are paid for before any transfer
+
+    // Guarded by lock
+    private final ReentrantLock lock = new ReentrantLock(true); // Fair, or the busiest flow keeps the others from even asking
+    private final Condition granted = lock.newCondition();
+    private final Map<UUID, Flow> flows = new HashMap<>();
+    private final Map<String, TokenBucket> users = new HashMap<>(); // Only while the user has a flow
+    private final ArrayDeque<Flow> backlogged = new ArrayDeque<>(); // Flows with a request waiting, in round robin order
+    private long chatPaid;
+
+    private final LongAdder throttled = new LongAdder(); // Nanoseconds relays spent waiting for bandwidth
+
+    public Bandwidth(long rate, long userRate, Map<String, Integer> weights, LongSupplier chatBytes) {
+        this.node = rate > 0 ? new TokenBucket(rate) : null;
+        this.userRate = userRate;
+        this.weights = weights;
+        this.chatBytes = chatBytes;
+        this.chatPaid = chatBytes.getAsLong();
+    }
+
+    public static Bandwidth fromConfig(LongSupplier chatBytes) {
+        Map<String, Integer> weights = new HashMap<>();
+        for (String entry : System.getProperty("transferWeights", "").split(",")) {
+            String[] userAndWeight = entry.trim().split(":");
+            if (userAndWeight.length == 2) weights.put(userAndWeight[0], Math.max(1, Integer.parseInt(userAndWeight[1])));
+        }
+        return new Bandwidth(Long.getLong("transferRate", 0), Long.getLong("transferUserRate", 0), weights, chatBytes);
+    }
+
+    public boolean isLimited() {
+        return node != null || userRate > 0;
+    }
+
+    // Bytes a relay should read before asking, so one request never takes more than a round of its flow.
+    // A stream has only one request out at a time, which is why the weight goes in here too.
+    public int slice(Flow flow, int bufferSize) {
+        return isLimited() ? (int) Math.min(bufferSize, (long) QUANTUM * flow.weight) : bufferSize;
+    }
+
+    public long throttledNanos() {
+        return throttled.sum();
+    }
+
+    // -----------------------------------   FLOWS   ------------------------------------------------
+
+    // Every stream of the session opens it, the last one to close it lets it go
+    public Flow open(UUID session, String user) {
+        if (!isLimited()) return new Flow(session, user, 1);
+        lock.lock();
+        try {
+            Flow flow = flows.computeIfAbsent(session, id -> new Flow(id, user, weights.getOrDefault(user, 1)));
+            flow.streams++;
+            if (userRate > 0) users.computeIfAbsent(user, name -> new TokenBucket(userRate)).flows++;
+            return flow;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close(Flow flow) {
+        if (!isLimited()) return;
+        lock.lock();
+        try {
+            if (--flow.streams == 0) flows.remove(flow.session);
+            TokenBucket bucket = users.get(flow.user);
+            if (bucket != null && --bucket.flows == 0) users.remove(flow.user);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until the flow may send that many bytes, at most a slice
+    public void acquire(Flow flow, int bytes) throws InterruptedException {
+        if (!isLimited()) return;
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            Request request = new Request(bytes);
+            if (flow.waiting.isEmpty()) backlogged.addLast(flow);
+            flow.waiting.addLast(request);
+            // Nobody hands out bandwidth but the waiters themselves, whoever wakes up serves everyone it can
+            while (!request.granted) {
+                dispatch();
+                if (request.granted) break;
+                try {
+                    granted.awaitNanos(wait(flow, bytes));
+                } catch (InterruptedException e) {
+                    // Or the flow would stay in line for a request nobody waits on
+                    if (!request.granted) {
+                        flow.waiting.remove(request);
+                        if (flow.waiting.isEmpty()) backlogged.remove(flow);
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            lock.unlock();
+            throttled.add(System.nanoTime() - start);
+        }
+    }
+
+    // Deficit round robin: the flow up front gets its quantum and sends while it lasts, then goes to the back. A flow
+    // the node has no bandwidth for stays up front, it is the first served when there is some again.
+    private void dispatch() {
+        long now = System.nanoTime();
+        if (node != null) {
+            // May go below zero, then transfers wait until the chat is paid for
+            long chat = chatBytes.getAsLong();
+            node.refill(now, chat - chatPaid);
+            chatPaid = chat;
+        }
+        for (TokenBucket bucket : users.values()) bucket.refill(now, 0);
+
+        boolean any = false;
+        int skipped = 0; // Flows in a row that got nothing, once that is all of them there is nothing to hand out
+        while (!backlogged.isEmpty() && skipped < backlogged.size()) {
+            Flow flow = backlogged.peekFirst();
+            TokenBucket user = users.get(flow.user);
+            Request head = flow.waiting.peekFirst();
+            if (head.bytes > flow.deficit) flow.deficit += (long) QUANTUM * flow.weight;
+            boolean served = false;
+            while (head != null && head.bytes <= flow.deficit && has(node, head.bytes) && has(user, head.bytes)) {
+                if (node != null) node.tokens -= head.bytes;
+                if (user != null) user.tokens -= head.bytes;
+                flow.deficit -= head.bytes;
+                head.granted = served = any = true;
+                flow.waiting.pollFirst();
+                head = flow.waiting.peekFirst();
+            }
+            // Only the node ran out, its turn goes on next time
+            if (head != null && head.bytes <= flow.deficit && has(user, head.bytes)) break;
+            // Out of quantum, out of its user's bandwidth or out of requests, either way its turn is over
+            backlogged.pollFirst();
+            if (head == null) flow.deficit = 0; // An idle flow doesn't save up
+            else backlogged.addLast(flow);
+            skipped = served ? 0 : skipped + 1;
+        }
+        if (any) granted.signalAll();
+    }
+
+    // Until the buckets the request waits on could have enough
+    private long wait(Flow flow, int bytes) {
+        long wait = MIN_WAIT;
+        if (node != null) wait = Math.max(wait, node.nanosUntil(bytes));
+        TokenBucket user = users.get(flow.user);
+        if (user != null) wait = Math.max(wait, user.nanosUntil(bytes));
+        return Math.min(wait, MAX_WAIT);
+    }
+
+    // A full bucket lets through more than it holds, or a slow ceiling and a big weight would never get anything
+    private static boolean has(TokenBucket bucket, int bytes) {
+        return bucket == null || bucket.tokens >= Math.min(bytes, bucket.capacity);
+    }
+
+    public static class Flow {
+        private final UUID session;
+        private final String user;
+        private final int weight;
+        // Guarded by the lock of the Bandwidth
+        private final ArrayDeque<Request> waiting = new ArrayDeque<>();
+        private long deficit;
+        private int streams;
+
+        private Flow(UUID session, String user, int weight) {
+            this.session = session;
+            this.user = user;
+            this.weight = weight;
+        }
+    }
+
+    private static class Request {
+        private final int bytes;
+        private boolean granted;
+
+        private Request(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    // Fills up at rate bytes per second and holds a tenth of a second of it, never less than a quantum.
+    // It owes a full bucket at most, or the chat of a long idle stretch would be charged to the next transfer all at once.
+    private static class TokenBucket {
+        private final long rate;
+        private final double capacity;
+        private double tokens;
+        private long last = System.nanoTime();
+        private int flows;
+
+        private TokenBucket(long rate) {
+            this.rate = rate;
+            this.capacity = Math.max(QUANTUM, rate / 10.0);
+            this.tokens = capacity;
+        }
+
+        // Whatever was spent outside of it since the last refill comes out of what that time earned
+        private void refill(long now, long spent) {
+            tokens = Math.max(-capacity, Math.min(capacity, tokens + (now - last) * rate / 1e9 - spent));
+            last = now;
+        }
+
+        private long nanosUntil(int bytes) {
+            double needed = Math.min(bytes, capacity);
+            return tokens >= needed ? 0 : (long) ((needed - tokens) * 1e9 / rate);
+        }
+    }
+}
@@ -1,31 +1,114 @@
 package features;
 
+import util.BufferPool;
+import util.TimingWheel;
+
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+// The relay between the two clients of a file transfer. Both connect, say their role and which stream of which session
+// they are, and once both sides of a stream are here its bytes are copied from the sender to the receiver.
+// Nothing in here is kept forever: a connection has HANDSHAKE_TIMEOUT to say who it is and PAIRING_TIMEOUT to be joined
+// by the other side, then it is closed and forgotten. At most MAX_RELAYS streams are copied at once, by as many relay
+// threads, paired ones beyond that wait in a queue of MAX_QUEUED for their turn and past that they are turned away.
+// How fast the relays go is up to the Bandwidth, which needs to know whose session a stream belongs to: the server
+// tells us about every session offered through it, sessions it never heard of are relayed as nobody's.
 public class FileTransfer implements Runnable {
 
     // -----------------------------------   CONSTANTS   ------------------------------------------------
 
     private int FILE_TRANSFER_PORT = 1338;
-    private final Map<UUID, Session> sessions;
+    private static final int HANDSHAKE_LENGTH = 1 + 36 + 1; // Role letter + UUID as a string + stream index
+    private static final int RELAY_BUFFER_SIZE = 256 * 1024;
+    private static final long HANDSHAKE_TIMEOUT = 10; // Seconds to send the handshake after connecting
+    private static final long PAIRING_TIMEOUT = Long.getLong("transferPairingTimeout", 60); // Seconds one side waits for the other
+    private static final int MAX_RELAYS = Integer.getInteger("maxTransfers", 64); // Streams copied at once
+    private static final int MAX_QUEUED = Integer.getInteger("transferQueue", 256); // Paired streams waiting for a relay thread
+    private static final int MAX_WAITING = 4096; // Streams waiting for their other side
+    private static final int MAX_OWNERS = 4096; // Sessions remembered for resuming, the oldest are forgotten first
+
+    // -----------------------------------   STATE   ------------------------------------------------
 
-    public FileTransfer(int port) {
+    private final Map<StreamId, Session> sessions = new ConcurrentHashMap<>(); // Every stream of a transfer pairs up on its own
+    private final ThreadFactory actorThreads; // Platform or virtual, depending on the mode the server runs in
+    private final TimingWheel timers; // The server's, for the handshake and pairing deadlines
+    private final ThreadPoolExecutor relays;
+    // Relay buffers are direct, so they are reused rather than left to the GC. One per relay thread is all it ever needs.
+    private final BufferPool buffers = new BufferPool(RELAY_BUFFER_SIZE, MAX_RELAYS);
+    private final AtomicInteger relaying = new AtomicInteger(); // Streams being copied right now
+    private final LongAdder expired = new LongAdder(); // Closed for not saying who they are or not being joined in time
+    private final LongAdder rejected = new LongAdder(); // Turned away because too many were waiting already
+    private final Bandwidth bandwidth;
+    // Who sent each session, kept past the transfer so a resume is charged to the same user
+    private final Map<UUID, String> owners = Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, String> eldest) {
+            return size() > MAX_OWNERS;
+        }
+    });
+
+    public FileTransfer(int port, ThreadFactory actorThreads, TimingWheel timers, Bandwidth bandwidth) {
         this.FILE_TRANSFER_PORT = port;
-        this.sessions = new ConcurrentHashMap<>();
+        this.actorThreads = actorThreads;
+        this.timers = timers;
+        this.bandwidth = bandwidth;
+        this.relays = new ThreadPoolExecutor(MAX_RELAYS, MAX_RELAYS, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED), actorThreads);
+        this.relays.allowCoreThreadTimeOut(true); // An idle relay holds no threads
+    }
+
+    // Streams where one side is still waiting for the other
+    public int waitingSessions() {
+        return sessions.size();
+    }
+
+    public int activeTransfers() {
+        return relaying.get();
+    }
+
+    // Streams with both sides here, waiting for a relay thread
+    public int queuedTransfers() {
+        return relays.getQueue().size();
+    }
+
+    public long expiredSessions() {
+        return expired.sum();
+    }
+
+    public long rejectedSessions() {
+        return rejected.sum();
+    }
+
+    public int relayBuffers() {
+        return buffers.allocated();
+    }
+
+    public long throttledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(bandwidth.throttledNanos());
+    }
+
+    // The server offered this session on behalf of the sender
+    public void offered(UUID session, String sender) {
+        owners.put(session, sender);
     }
 
     @Override
     public void run() {
-        try (ServerSocket serverSocket = new ServerSocket(FILE_TRANSFER_PORT)) {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(FILE_TRANSFER_PORT));
             while (true) {
-                Socket socket = serverSocket.accept();
-                new Thread(new FileTransferActor(socket)).start();
+                SocketChannel channel = serverChannel.accept();
+                actorThreads.newThread(new FileTransferActor(channel)).start();
             }
         } catch (IOException e) {
             System.err.println("A file transfer actor has disconnected abruptly");
@@ -33,78 +116,167 @@ public class FileTransfer implements Runnable {
     }
 
     private class FileTransferActor implements Runnable {
-        private final OutputStream out;
-        private final InputStream in;
+        private final SocketChannel channel;
 
-        public FileTransferActor(Socket clientSocket) {
-            try {
-                this.out = clientSocket.getOutputStream();
-                this.in = clientSocket.getInputStream();
-                System.out.println("New file transfer actor");
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        public FileTransferActor(SocketChannel channel) {
+            this.channel = channel;
+            System.out.println("New file transfer actor");
         }
 
         @Override
         public void run() {
+            // Closing the channel is what gets a read stuck on it going, the read then fails
+            TimingWheel.Timeout handshakeDeadline = timers.schedule(() -> expire(this), HANDSHAKE_TIMEOUT, TimeUnit.SECONDS);
             try {
-                String role = new String(in.readNBytes(1), StandardCharsets.UTF_8);
-                System.out.println("Role: " + role);
-                UUID sessionId = UUID.nameUUIDFromBytes(in.readNBytes(36));
-                System.out.println("UUID: " + sessionId);
-                // I think it gets stuck here? Thats what the debugger seems to show
-                // Also, from what I see only one thread of the actor is present, meaning it might have been interrupted
-
-                Session session = sessions.computeIfAbsent(sessionId, k -> new Session());
-
-                System.out.println("Session " + sessionId);
-
-                switch (role) {
-                    case "S" -> {
-                        System.out.println("Setting sender");
-                        session.setSender(this);
-                        sessions.put(sessionId, session);
-                    }
-                    case "R" -> {
-                        System.out.println("Setting receiver");
-                        session.setReceiver(this);
-                        sessions.put(sessionId, session);
+                ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+                while (handshake.hasRemaining()) {
+                    if (channel.read(handshake) == -1) throw new EOFException("Actor left before finishing the handshake");
+                }
+                if (!handshakeDeadline.cancel()) return; // Closed already
+                String role = new String(handshake.array(), 0, 1, StandardCharsets.UTF_8);
+                StreamId streamId = new StreamId(UUID.fromString(new String(handshake.array(), 1, 36, StandardCharsets.UTF_8)), handshake.get(37) & 0xFF);
+                System.out.println("Role: " + role + ", " + streamId);
+
+                if (!role.equals("S") && !role.equals("R")) {
+                    System.out.println("Unknown role: '" + role + "'");
+                    close();
+                    return;
+                }
+                if (sessions.size() >= MAX_WAITING && !sessions.containsKey(streamId)) {
+                    System.out.println("Too many transfers waiting, turning " + streamId + " away");
+                    rejected.increment();
+                    close();
+                    return;
+                }
+
+                // The first of the two to arrive starts the clock on the second
+                Session session = sessions.computeIfAbsent(streamId, Session::new);
+                boolean second;
+                synchronized (session) {
+                    if (session.arrived == 2 || (role.equals("S") ? session.sender : session.receiver) != null) {
+                        System.out.println(streamId + " got the same role twice, dropping it");
+                        close();
+                        return;
                     }
-                    default -> System.out.println("Unknown role: '" + role + "'");
+                    if (role.equals("S")) session.sender = this;
+                    else session.receiver = this;
+                    second = ++session.arrived == 2;
                 }
 
-                if (session.receiver != null && session.sender != null) {
-                    System.out.println("Starting transfer");
-                    session.sender.in.transferTo(session.receiver.out);
-                    session.receiver.in.close();
-                    session.sender.out.close();
+                // Whoever of the two arrives second hands the stream over to the relays
+                if (second) {
+                    sessions.remove(streamId, session);
+                    if (!session.deadline.cancel()) { // Too late, the first one is gone
+                        close();
+                        return;
+                    }
+                    admit(session);
                 }
+            } catch (IOException | IllegalArgumentException e) {
+                boolean timedOut = !handshakeDeadline.cancel() && !handshakeDeadline.isCancelled();
+                if (timedOut) System.out.println("A file transfer actor didn't finish its handshake in time");
+                else System.err.println("File transfer actor failed: " + e.getMessage());
+                close();
+            }
+        }
 
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
             }
         }
     }
 
+    // -----------------------------------   SESSIONS   ------------------------------------------------
 
-// -----------------------------------   MESSAGE HANDLING   ------------------------------------------------
+    // On the wheel thread, so it only closes
+    private void expire(FileTransferActor actor) {
+        expired.increment();
+        actor.close();
+    }
 
-    private static class Session {
-        private FileTransferActor receiver;
-        private FileTransferActor sender;
+    private void expire(Session session) {
+        if (!sessions.remove(session.id, session)) return;
+        System.out.println(session.id + " was never joined by its other side, dropping it");
+        expired.increment();
+        session.close();
+    }
+
+    // Waits for a relay thread if all of them are busy, as long as the queue has room
+    private void admit(Session session) {
+        try {
+            relays.execute(() -> relay(session));
+        } catch (RejectedExecutionException e) {
+            System.out.println("Too many transfers queued, turning " + session.id + " away");
+            rejected.increment();
+            session.close();
+        }
+    }
+
+    // -----------------------------------   RELAY   ------------------------------------------------
 
-        public Session() {
-            this.receiver = null;
-            this.sender = null;
+    // There is no socket-to-socket transferTo in the JDK, so this is the closest to zero copy we get:
+    // bytes go kernel -> direct buffer -> kernel, they never pass through the Java heap.
+    // What was read is only passed on once the Bandwidth allows it. Until then the sender's socket fills up and TCP
+    // slows the sender down, so a throttled transfer holds no more than one slice of it here.
+    private void relay(Session session) {
+        System.out.println("Starting transfer of " + session.id);
+        ByteBuffer buffer = buffers.acquire();
+        Bandwidth.Flow flow = bandwidth.open(session.id.session(), owners.getOrDefault(session.id.session(), ""));
+        int slice = bandwidth.slice(flow, buffer.capacity());
+        SocketChannel from = session.sender.channel, to = session.receiver.channel;
+        long relayed = 0;
+        long start = System.nanoTime();
+        relaying.incrementAndGet();
+        try (from; to) {
+            buffer.limit(slice);
+            while (from.read(buffer) != -1) {
+                buffer.flip();
+                bandwidth.acquire(flow, buffer.remaining());
+                while (buffer.hasRemaining()) relayed += to.write(buffer);
+                buffer.clear().limit(slice);
+            }
+        } catch (IOException e) {
+            System.err.println("Relaying " + session.id + " failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.err.println("Relaying " + session.id + " was interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            relaying.decrementAndGet();
+            bandwidth.close(flow);
+            buffers.release(buffer);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s relayed %d bytes in %.3f s (%.1f MB/s)%n",
+                    session.id, relayed, seconds, relayed / seconds / (1024 * 1024));
         }
+    }
+
+    // -----------------------------------   MESSAGE HANDLING   ------------------------------------------------
+
+    private record StreamId(UUID session, int stream) {
+        @Override
+        public String toString() {
+            return "session " + session + " stream " + stream;
+        }
+    }
+
+    private class Session {
+        private final StreamId id;
+        private final TimingWheel.Timeout deadline; // For the second side to arrive
+        // Guarded by the session
+        private FileTransferActor receiver;
+        private FileTransferActor sender;
+        private int arrived;
 
-        public void setReceiver(FileTransferActor receiver) {
-            this.receiver = receiver;
+        private Session(StreamId id) {
+            this.id = id;
+            this.deadline = timers.schedule(() -> expire(this), PAIRING_TIMEOUT, TimeUnit.SECONDS);
         }
 
-        public void setSender(FileTransferActor sender) {
-            this.sender = sender;
+        private synchronized void close() {
+            for (FileTransferActor actor : new FileTransferActor[]{sender, receiver})
+                if (actor != null) actor.close();
         }
     }
 
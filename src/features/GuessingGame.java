@@ -3,22 +3,26 @@ package features;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import messages.Leaderboard;
+import server.Frame;
 import server.Server.Connection;
+import util.Json;
+import util.TimingWheel;
 
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static util.Util.*;
 
-public class GuessingGame implements Runnable {
+// A lobby owns no thread. Its two timers sit on a wheel every lobby shares, so thousands of games cost the same
+// threads as one. The players' handlers and the wheel both get in here, which is why everything that touches the
+// state holds the game's lock - never for long, sending a frame only queues it.
+public class GuessingGame {
     // -----------------------------------   SETUP   ------------------------------------------------
 
     private final Set<Connection> players = new HashSet<>();
     private final Map<String, Long> leaderboard = new HashMap<>();
-    private final ObjectMapper mapper = new ObjectMapper();
-    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final ObjectMapper mapper = Json.MAPPER;
+    private final TimingWheel timers;
     private final Runnable shutdown;
 
 
@@ -35,10 +39,13 @@ public class GuessingGame implements Runnable {
     private final String lobbyName;
     private GameState gameState = GameState.COLLECTION;
     private int playersGuessed = 0;
+    private boolean ended = false;
+    private TimingWheel.Timeout collectionTimer, endTimer;
 
 
-    public GuessingGame(String lobbyName, Connection initiator, Runnable shutdown) {
+    public GuessingGame(String lobbyName, Connection initiator, Runnable shutdown, TimingWheel timers) {
         players.add(initiator);
+        this.timers = timers;
         this.shutdown = shutdown;
         this.answer = (new Random()).nextInt(GAME_LOWER_BOUND, GAME_UPPER_BOUND + 1);
         this.lobbyName = lobbyName;
@@ -52,18 +59,17 @@ public class GuessingGame implements Runnable {
 //    }
 
 
-    @Override
-    public void run() {
-        executor.schedule(new CollectionPeriod(), COLLECTION_PERIOD, TimeUnit.SECONDS);
+    public synchronized void start() {
+        collectionTimer = timers.schedule(new CollectionPeriod(), COLLECTION_PERIOD, TimeUnit.SECONDS);
         // the game itself is longer, and because both tasks are being scheduled now
         // the game timer will be equal the collection period + the game time itself
         int GAME_TIMER_SUMMED = COLLECTION_PERIOD + GAME_TIMER;
-        executor.schedule(new EndGame(true), GAME_TIMER_SUMMED, TimeUnit.SECONDS);
+        endTimer = timers.schedule(new EndGame(true), GAME_TIMER_SUMMED, TimeUnit.SECONDS);
     }
 
-    public boolean handleGameJoin(Connection player) {
+    public synchronized boolean handleGameJoin(Connection player) {
         try {
-            if (gameState == GameState.COLLECTION) {
+            if (gameState == GameState.COLLECTION && !ended) {
                 if (isInGame(player)) {
                     player.sendResponse("GAME_JOIN", 856, lobbyName);
                     return false;
@@ -80,9 +86,9 @@ public class GuessingGame implements Runnable {
         }
     }
 
-    public void handleGameGuess(Connection player, int guess) {
+    public synchronized void handleGameGuess(Connection player, int guess) {
         try {
-            if (gameState == GameState.ELAPSED) {
+            if (gameState == GameState.ELAPSED && !ended) {
                 if (!isInGame(player)) {
                     player.sendResponse("GAME_GUESS", 852, lobbyName);
                     return;
@@ -99,9 +105,10 @@ public class GuessingGame implements Runnable {
                     player.sendResponse("GAME_GUESS", 800, -1);
                 else {
                     player.sendResponse("GAME_GUESS", 800, 0);
+                    Frame guessed = Frame.of("GAME_GUESSED", wrapInJson("username", player.username));
                     players.stream()
                             .filter(p -> !p.username.equals(player.username))
-                            .forEach(p -> p.sendMessageToClient("GAME_GUESSED " + wrapInJson("username", player.username)));
+                            .forEach(p -> p.send(guessed));
                     // nanoTime of System returns the current time to nanoseconds
                     // division by 1_000_000 is the conversion to milliseconds
                     long playerGuessTimeMs = (System.nanoTime() - startTime) / 1_000_000;
@@ -128,7 +135,8 @@ public class GuessingGame implements Runnable {
     }
 
     private void notifyEveryone(String message) {
-        players.forEach(player -> player.sendMessageToClient(message));
+        Frame frame = Frame.of(message);
+        players.forEach(player -> player.send(frame));
     }
 
     // -----------------------------------   GAME LIFECYCLE   ------------------------------------------------
@@ -136,6 +144,12 @@ public class GuessingGame implements Runnable {
     class CollectionPeriod implements Runnable {
         @Override
         public void run() {
+            synchronized (GuessingGame.this) {
+                if (!ended) collect();
+            }
+        }
+
+        private void collect() {
             if (players.size() == 1) {
                 notifyEveryone("GAME_FAIL " + wrapInJson("lobby", lobbyName));
                 new EndGame(false).run();
@@ -162,25 +176,27 @@ public class GuessingGame implements Runnable {
 
         @Override
         public void run() {
+            synchronized (GuessingGame.this) {
+                if (!ended) end();
+            }
+        }
+
+        // Whoever gets here first ends it: the game timer, the last right guess or a failed collection.
+        // The timers that haven't fired yet are taken off the wheel, they'd have nothing left to do.
+        private void end() {
+            ended = true;
+            collectionTimer.cancel();
+            endTimer.cancel();
             try {
                 System.out.println("Ended the game at lobby '" + lobbyName + "'");
                 if (showLeaderboard) {
                     notifyEveryone("GAME_END " + mapper.writeValueAsString(new Leaderboard(lobbyName, leaderboard)));
                 }
                 players.forEach(Connection::leaveGame);
-
-                // Interrupting a thread group is apparently too little to stop an executor
-                // from firing tasks, so we also manually terminate the executor.
-                //
-                // Although even `shutdownNow` description says, quote, "For example,
-                // typical implementations will cancel via Thread.interrupt, so any
-                // task that fails to respond to interrupts may never terminate."
-
-                shutdown.run(); // remove game from active
-                executor.shutdownNow(); // try stop scheduled executor tasks (another GAME_END)
-                Thread.currentThread().getThreadGroup().interrupt(); // kill the game thread
             } catch (JsonProcessingException e) {
                 throw new RuntimeException(e);
+            } finally {
+                shutdown.run(); // remove game from active
             }
         }
     }
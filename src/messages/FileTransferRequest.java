@@ -2,8 +2,17 @@ package messages;
 
 import java.util.UUID;
 
-public record FileTransferRequest(String filename, String receiver, String sender, UUID sessionId, String checksum) {
+// relay is the host:port of the file transfer relay to use when sender and receiver are on different nodes of a cluster,
+// empty when the relay of the server the receiver is connected to will do.
+// The file goes over streams parallel connections, each carrying its own range of it, see FileTransferManager.
+// Each stream says its index in one byte when it connects to the relay, so there are 1 to MAX_STREAMS of them.
+// There is no checksum of the whole file, every chunk carries its own.
+// compression is what the sender can do to the chunks ("deflate"), null or empty when it sends them as they are.
+// Only what the receiver answers with in its FileTransferResponse is used.
+public record FileTransferRequest(String filename, String receiver, String sender, UUID sessionId, String relay, long size, int streams,
+                                  String compression) {
+    public static final int MAX_STREAMS = 255;
 }
 
 // when compiling a response/request for the file transfer, you always specify the eventual receiver of a message as "receiver"
-// and the initial sender of a message as "sender"
\ No newline at end of file
+// and the initial sender of a message as "sender"
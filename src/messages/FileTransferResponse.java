@@ -2,7 +2,8 @@ package messages;
 
 import java.util.UUID;
 
-public record FileTransferResponse(boolean status, String sender, UUID sessionId) {
+// compression is the one the receiver picked out of what the request offered, null or empty for none
+public record FileTransferResponse(boolean status, String sender, UUID sessionId, String compression) {
 }
 
 // when compiling a response/request for the file transfer, you always specify the eventual receiver of the request as "receiver"
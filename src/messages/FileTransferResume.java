@@ -0,0 +1,8 @@
+package messages;
+
+import java.util.UUID;
+
+// From the receiver of an interrupted transfer to its sender: where every stream should pick up again.
+// username is the other side, the sender on the way there and the receiver once the server passes it on.
+public record FileTransferResume(UUID sessionId, String username, long[] offsets) {
+}
@@ -0,0 +1,3 @@
+package messages;
+
+public record HistoryEntry(long offset, long time, String room, String username, String message) { }
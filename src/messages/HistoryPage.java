@@ -0,0 +1,6 @@
+package messages;
+
+import java.util.List;
+
+// Oldest entry first. Before is what to ask for to get the page before this one, -1 if there is nothing older.
+public record HistoryPage(String room, List<HistoryEntry> entries, long before) { }
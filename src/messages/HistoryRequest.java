@@ -0,0 +1,4 @@
+package messages;
+
+// HISTORY: messages of the room ("" for the broadcasts) older than the offset before, 0 for the newest ones
+public record HistoryRequest(String room, long before, int limit) { }
@@ -0,0 +1,4 @@
+package messages;
+
+// Commands that only name a lobby: GAME_LAUNCH and GAME_JOIN
+public record Lobby(String lobby) { }
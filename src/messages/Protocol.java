@@ -0,0 +1,5 @@
+package messages;
+
+// PROTOCOL command, the codec a client asks to switch to, null keeps the one it has.
+// compression "deflate" asks for both directions to be deflated from then on, see FrameDeflater.
+public record Protocol(String codec, String compression) { }
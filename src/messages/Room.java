@@ -0,0 +1,4 @@
+package messages;
+
+// Commands that only name a room: JOIN_ROOM and LEAVE_ROOM
+public record Room(String room) { }
@@ -0,0 +1,4 @@
+package messages;
+
+// ROOM_MESSAGE both ways, the username is filled in by the server. ROOM_JOINED and ROOM_LEFT have no message.
+public record RoomMessage(String room, String username, String message) { }
@@ -0,0 +1,4 @@
+package messages;
+
+// Commands that only name a user: LOGIN, PUBLIC_KEY_REQ and SECURE_READY
+public record Username(String username) { }
@@ -0,0 +1,488 @@
+package server;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import messages.SystemMessage;
+import util.CommandRegistry;
+import util.FrameDecoder;
+import util.Json;
+import util.TimingWheel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Several servers acting as one chatroom. Every node owns the connections made to it and keeps a replicated
+// directory of which node every other user is on, frames for those users are handed to their node over a peer link.
+// Who may use a name is decided by a single node per name, its registrar, picked by hashing the name over the nodes
+// of the config. Every node is given the same config, so they agree on the registrar without talking about it,
+// and a login is one round trip to it at most. A name granted to another node is only lent to it until that node says
+// its user joined, a node that never does, because the grant got lost or the login failed, loses it after CLAIM_LOAN.
+//   -Dcluster=a@127.0.0.1:7001,b@127.0.0.1:7002,c@127.0.0.1:7003 -Dnode=a
+// Without -Dcluster the server is a cluster of one, its own registrar, and nothing goes over the network.
+// Peers talk the text protocol to each other, over two links per pair: the one a node dialed is only written,
+// the one it accepted is only read. When a node goes away, its users are gone from the directory and their names are free.
+// A node listens on the host of its own entry only, and takes links from the addresses of the config only. With
+// -DclusterSecret, the same on every node, a NODE_HELLO also has to prove it knows the secret. The links aren't encrypted,
+// that keeps out whoever doesn't know it, not whoever can read the traffic between the nodes.
+public class Cluster {
+
+    // What the cluster needs from the server it runs in
+    public interface Local {
+        void deliver(String username, Frame frame); // To a user of this node, if they are still here
+        void broadcast(Frame frame); // To every user of this node
+        void publish(String room, Frame frame); // To the users of this node in the room
+        void arrived(String username); // Logged in on another node
+        Set<String> usernames();
+    }
+
+    // -----------------------------------   CONSTANTS   ------------------------------------------------
+
+    private static final long CLAIM_TIMEOUT = 3; // Seconds the registrar has to answer a claim
+    private static final long CLAIM_LOAN = 10; // Seconds a granted claim waits for its USER_JOINED
+    private static final long RECONNECT_DELAY = 1000; // Milliseconds between two attempts to dial a peer
+    private static final int MAX_FRAME_LENGTH = 256 * 1024; // A client frame and the envelope around it
+    private static final int READ_CHUNK = 8 * 1024;
+    // Bytes queued for one node before the link is given up on, it's dialed again and told everything anew
+    private static final long PEER_QUEUE_LIMIT = Long.getLong("peerQueueLimit", 16 * 1024 * 1024);
+    private static final long HELLO_MAX_AGE = TimeUnit.SECONDS.toMillis(30); // Clock skew between the nodes included
+
+    // -----------------------------------   SETUP   ------------------------------------------------
+
+    private final Local local;
+    private final String self;
+    private final String host; // Where clients of the other nodes reach this one, for file transfers
+    private final int port;
+    private final String secret; // Null without -DclusterSecret
+    private final List<String> nodes; // Sorted, the same on every node
+    private final Map<String, Peer> peers = new HashMap<>(); // Never changes after the config is read
+    // Users of the other nodes, by the node they are on
+    private final ConcurrentHashMap<String, String> directory = new ConcurrentHashMap<>();
+    // The names this node is the registrar of, by the node that holds them
+    private final ConcurrentHashMap<String, String> claims = new ConcurrentHashMap<>();
+    // Of those, the ones granted to another node whose user hasn't joined yet. A token per loan, so an old deadline
+    // can't end a newer loan of the same name.
+    private final ConcurrentHashMap<String, Object> lent = new ConcurrentHashMap<>();
+    private final TimingWheel timers; // The server's, for the loans
+    // Claims of this node waiting for their registrar. Connections claiming the same name share one.
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+    private final CommandRegistry<Link> commands = new CommandRegistry<>();
+    private final LongAdder relayed = new LongAdder(); // Frames handed to another node
+    private final LongAdder bytesOut = new LongAdder(); // Written to the other nodes
+    // Drain the peers' queues, see SocketTransport. Senders are event loops and the timing wheel, they never wait for a node.
+    private final ExecutorService writers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ClusterWriter_", 0).factory());
+
+    private Cluster(Local local, TimingWheel timers, String self, String host, int port, String secret, Map<String, InetSocketAddress> others) {
+        this.local = local;
+        this.timers = timers;
+        this.self = self;
+        this.host = host;
+        this.port = port;
+        this.secret = secret;
+        others.forEach((node, address) -> peers.put(node, new Peer(node, address)));
+        List<String> nodes = new ArrayList<>(others.keySet());
+        nodes.add(self);
+        Collections.sort(nodes);
+        this.nodes = List.copyOf(nodes);
+        registerCommands();
+    }
+
+    // Reads -Dcluster, -Dnode and -DclusterSecret, a cluster of one if there is no -Dcluster
+    public static Cluster fromConfig(Local local, TimingWheel timers) {
+        String config = System.getProperty("cluster", "");
+        String self = System.getProperty("node", "local");
+        if (config.isBlank()) return new Cluster(local, timers, self, "", 0, null, Map.of());
+        String secret = System.getProperty("clusterSecret", "");
+
+        Map<String, InetSocketAddress> others = new HashMap<>();
+        InetSocketAddress own = null;
+        for (String entry : config.split(",")) {
+            String[] idAndAddress = entry.trim().split("@", 2);
+            String[] hostAndPort = idAndAddress[1].split(":", 2);
+            InetSocketAddress address = new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1]));
+            if (address.isUnresolved()) throw new IllegalArgumentException("Can't resolve the address of node " + idAndAddress[0]);
+            if (idAndAddress[0].equals(self)) own = address;
+            else others.put(idAndAddress[0], address);
+        }
+        if (own == null) throw new IllegalArgumentException("Node " + self + " is not part of the cluster " + config);
+        return new Cluster(local, timers, self, own.getHostString(), own.getPort(), secret.isEmpty() ? null : secret, others);
+    }
+
+    // Listens for the other nodes and keeps dialing them until they are up
+    public void start() {
+        if (peers.isEmpty()) return;
+        Thread.ofPlatform().name("ClusterAcceptor").daemon().start(this::accept);
+        for (Peer peer : peers.values()) Thread.ofPlatform().name("ClusterDialer_" + peer.node).daemon().start(peer::dial);
+        System.out.println("Node " + self + " of cluster " + nodes + " listening for peers on port " + port);
+    }
+
+    private void registerCommands() {
+        commands.register("NODE_HELLO", Hello.class, Link::handleHello)
+                .register("CLAIM", Member.class, (link, claim) -> handleClaim(claim))
+                .register("CLAIMED", Claimed.class, (link, claimed) -> handleClaimed(claimed))
+                .register("USER_JOINED", Member.class, (link, member) -> handleJoined(member))
+                .register("USER_LEFT", Member.class, (link, member) -> handleLeft(member))
+                .register("DELIVER", Deliver.class, (link, deliver) -> local.deliver(deliver.username(), Frame.of(deliver.type(), deliver.body())))
+                .register("FANOUT", FanOut.class, (link, fanOut) -> local.broadcast(Frame.broadcast(fanOut.type(), fanOut.body())))
+                .register("ROOM_FANOUT", RoomFanOut.class, (link, fanOut) -> local.publish(fanOut.room(), Frame.broadcast(fanOut.type(), fanOut.body())));
+    }
+
+    // -----------------------------------   USERS   ------------------------------------------------
+
+    // Completes with whether this node may log someone in under the name. Fails if the registrar can't be asked.
+    public CompletableFuture<Boolean> claim(String username) {
+        if (directory.containsKey(username)) return CompletableFuture.completedFuture(false);
+        String registrar = registrarOf(username);
+        if (registrar.equals(self)) return CompletableFuture.completedFuture(grant(username, self));
+
+        CompletableFuture<Boolean> claim = new CompletableFuture<>();
+        CompletableFuture<Boolean> running = pending.putIfAbsent(username, claim);
+        if (running != null) return running;
+        claim.orTimeout(CLAIM_TIMEOUT, TimeUnit.SECONDS).whenComplete((granted, failure) -> pending.remove(username, claim));
+        if (!peers.get(registrar).send("CLAIM", new Member(self, username)))
+            claim.completeExceptionally(new IOException("Registrar " + registrar + " is unreachable"));
+        return claim;
+    }
+
+    // A name claimed by this node is now in use, every other node learns where its user is
+    public void joined(String username) {
+        for (Peer peer : peers.values()) peer.send("USER_JOINED", new Member(self, username));
+    }
+
+    // Frees the name on its registrar, wherever that is
+    public void left(String username) {
+        claims.remove(username, self);
+        for (Peer peer : peers.values()) peer.send("USER_LEFT", new Member(self, username));
+    }
+
+    // False if nobody by that name is on another node, or that node can't be reached
+    public boolean deliver(String username, Frame frame) {
+        String node = directory.get(username);
+        if (node == null || !peers.get(node).send("DELIVER", new Deliver(username, frame.type(), frame.body()))) return false;
+        relayed.increment();
+        return true;
+    }
+
+    // To the users of every other node, the ones of this node are the server's to reach
+    public void fanOut(Frame frame) {
+        for (Peer peer : peers.values()) {
+            if (peer.send("FANOUT", new FanOut(frame.type(), frame.body()))) relayed.increment();
+        }
+    }
+
+    // Rooms aren't replicated, every node that has someone in the room delivers it to them
+    public void publish(String room, Frame frame) {
+        for (Peer peer : peers.values()) {
+            if (peer.send("ROOM_FANOUT", new RoomFanOut(room, frame.type(), frame.body()))) relayed.increment();
+        }
+    }
+
+    public Set<String> remoteUsers() {
+        return directory.keySet();
+    }
+
+    public String self() {
+        return self;
+    }
+
+    public String host() {
+        return host;
+    }
+
+    public boolean isClustered() {
+        return !peers.isEmpty();
+    }
+
+    public int peersUp() {
+        int up = 0;
+        for (Peer peer : peers.values()) if (peer.isUp()) up++;
+        return up;
+    }
+
+    public LongAdder relayed() {
+        return relayed;
+    }
+
+    public LongAdder bytesOut() {
+        return bytesOut;
+    }
+
+    private String registrarOf(String username) {
+        return nodes.get(Math.floorMod(username.hashCode(), nodes.size()));
+    }
+
+    // The same node may claim a name more than once, its connections racing for it sort it out among themselves
+    private boolean grant(String username, String node) {
+        String holder = claims.putIfAbsent(username, node);
+        return holder == null || holder.equals(node);
+    }
+
+    // -----------------------------------   PEER MESSAGES   ------------------------------------------------
+
+    private void handleClaim(Member claim) {
+        String username = claim.username(), node = claim.node();
+        String holder = claims.putIfAbsent(username, node);
+        if (holder == null) lend(username, node); // A name the node already holds is in use there, or lent already
+        peers.get(node).send("CLAIMED", new Claimed(username, holder == null || holder.equals(node)));
+    }
+
+    // Until the node's USER_JOINED, which returns the token, or its USER_LEFT
+    private void lend(String username, String node) {
+        Object loan = new Object();
+        lent.put(username, loan);
+        timers.schedule(() -> {
+            if (lent.remove(username, loan) && claims.remove(username, node))
+                System.err.println("Node " + node + " never logged in " + username + ", the name is free again");
+        }, CLAIM_LOAN, TimeUnit.SECONDS);
+    }
+
+    // A grant nobody waits for anymore, because the claim timed out, is handed back right away
+    private void handleClaimed(Claimed claimed) {
+        CompletableFuture<Boolean> claim = pending.remove(claimed.username());
+        boolean taken = claim != null && claim.complete(claimed.granted());
+        if (!taken && claimed.granted() && !local.usernames().contains(claimed.username())) left(claimed.username());
+    }
+
+    private void handleJoined(Member member) throws JsonProcessingException {
+        if (registrarOf(member.username()).equals(self)) {
+            // Joined after its loan ran out, the name is still theirs unless someone else has it by now
+            String holder = claims.putIfAbsent(member.username(), member.node());
+            if (holder == null || holder.equals(member.node())) lent.remove(member.username());
+            else System.err.println(member.username() + " joined on node " + member.node() + " but " + holder + " holds the name");
+        }
+        directory.put(member.username(), member.node());
+        local.broadcast(Frame.broadcast("ARRIVED", Json.MAPPER.writeValueAsString(new SystemMessage(member.username()))));
+        local.arrived(member.username());
+    }
+
+    private void handleLeft(Member member) throws JsonProcessingException {
+        if (claims.remove(member.username(), member.node())) lent.remove(member.username());
+        if (directory.remove(member.username(), member.node()))
+            local.broadcast(Frame.broadcast("LEFT", Json.MAPPER.writeValueAsString(new SystemMessage(member.username()))));
+    }
+
+    // Whatever the node held is gone with it, its users are told to have left. Names it is the registrar of
+    // can't be claimed until it is back, the other nodes can't tell a dead node from one they can't reach.
+    private void nodeDown(String node) {
+        System.err.println("Lost the link from node " + node);
+        peers.get(node).close(); // Its dialer notices and keeps trying, claims fail right away meanwhile
+        pending.forEach((username, claim) -> {
+            if (registrarOf(username).equals(node)) claim.completeExceptionally(new IOException("Registrar " + node + " is down"));
+        });
+        claims.values().removeIf(node::equals);
+        for (Map.Entry<String, String> user : directory.entrySet()) {
+            try {
+                if (user.getValue().equals(node)) handleLeft(new Member(node, user.getKey()));
+            } catch (JsonProcessingException ignored) {
+            }
+        }
+    }
+
+    // Time is the sender's clock in millis, proof the HMAC of the node and the time with the cluster's secret
+    public record Hello(String node, List<String> users, long time, String proof) { }
+
+    public record Member(String node, String username) { }
+
+    public record Claimed(String username, boolean granted) { }
+
+    public record Deliver(String username, String type, String body) { }
+
+    public record FanOut(String type, String body) { }
+
+    public record RoomFanOut(String room, String type, String body) { }
+
+    // -----------------------------------   AUTHENTICATION   ------------------------------------------------
+
+    private boolean isPeerAddress(InetAddress address) {
+        for (Peer peer : peers.values()) if (peer.address.getAddress().equals(address)) return true;
+        return false;
+    }
+
+    // Null without a secret
+    private String proof(String node, long time) {
+        if (secret == null) return null;
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return Base64.getEncoder().encodeToString(mac.doFinal((node + "@" + time).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is part of every JDK", e);
+        }
+    }
+
+    // A recent hello with the right proof, or anything without a secret. Compared in constant time.
+    private boolean isProven(Hello hello) {
+        if (secret == null) return true;
+        if (hello.proof() == null || Math.abs(System.currentTimeMillis() - hello.time()) > HELLO_MAX_AGE) return false;
+        return MessageDigest.isEqual(proof(hello.node(), hello.time()).getBytes(StandardCharsets.UTF_8),
+                hello.proof().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // -----------------------------------   INBOUND LINKS   ------------------------------------------------
+
+    private void accept() {
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(new InetSocketAddress(host, port));
+            while (true) {
+                Socket socket = serverSocket.accept();
+                if (!isPeerAddress(socket.getInetAddress())) {
+                    System.err.println("Refused a cluster link from " + socket.getInetAddress() + ", it's no node of the config");
+                    socket.close();
+                    continue;
+                }
+                Thread.ofPlatform().name("ClusterLink").daemon().start(new Link(socket));
+            }
+        } catch (IOException e) {
+            System.err.println("The cluster stopped accepting peers: " + e.getMessage());
+        }
+    }
+
+    // Read only. Which node is on the other end is only known once its NODE_HELLO is in.
+    private class Link implements Runnable {
+        private final Socket socket;
+        private final FrameDecoder decoder = new FrameDecoder(MAX_FRAME_LENGTH);
+        private String node;
+
+        private Link(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try (socket) {
+                InputStream in = socket.getInputStream();
+                byte[] chunk = new byte[READ_CHUNK];
+                int read;
+                while ((read = in.read(chunk)) != -1) decoder.feed(ByteBuffer.wrap(chunk, 0, read), this::onFrame);
+            } catch (IOException e) {
+                System.err.println("Cluster link failed: " + e.getMessage());
+            } finally {
+                if (node != null) nodeDown(node);
+            }
+        }
+
+        private void onFrame(String type, String body) throws IOException {
+            if (node == null && !type.equals("NODE_HELLO")) throw new IOException("Expected NODE_HELLO, got " + type);
+            if (!commands.dispatch(this, type, body)) System.err.println("Unknown cluster message " + type);
+        }
+
+        // Everything the node has, whether it's new or came back. Users it no longer has have left while the link was down.
+        private void handleHello(Hello hello) throws IOException {
+            Peer peer = peers.get(hello.node());
+            if (peer == null) throw new IOException("Node " + hello.node() + " is not part of the cluster");
+            if (!peer.address.getAddress().equals(socket.getInetAddress()))
+                throw new IOException("Node " + hello.node() + " can't link from " + socket.getInetAddress());
+            if (!isProven(hello)) throw new IOException("Node " + hello.node() + " doesn't know the cluster secret");
+            node = hello.node();
+            Set<String> users = new HashSet<>(hello.users());
+            directory.entrySet().removeIf(user -> user.getValue().equals(node) && !users.contains(user.getKey()));
+            for (String username : users) {
+                directory.put(username, node);
+                if (registrarOf(username).equals(self) && node.equals(claims.computeIfAbsent(username, name -> node))) lent.remove(username);
+            }
+            System.out.println("Node " + node + " joined with " + users.size() + " users");
+        }
+    }
+
+    // -----------------------------------   OUTBOUND LINKS   ------------------------------------------------
+
+    // Write only. Sending only queues the frame, a writer drains the queue like it does a client's. The lock is held
+    // just as long as it takes to queue, so the NODE_HELLO is queued before anything else on a new link.
+    private class Peer {
+        private final String node;
+        private final InetSocketAddress address;
+        // Guarded by this
+        private Socket socket;
+        private SocketTransport transport;
+
+        private Peer(String node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+
+        // Dialer thread, forever. A link that broke on a write is dialed again from here.
+        private void dial() {
+            while (true) {
+                if (!isUp()) connect();
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // Dialing happens outside the lock, senders don't wait for a peer that isn't there
+        private void connect() {
+            Socket socket = new Socket();
+            try {
+                socket.bind(new InetSocketAddress(host, 0)); // From the address the other nodes know this one by
+                socket.connect(address, (int) RECONNECT_DELAY);
+                socket.setTcpNoDelay(true);
+                SocketTransport transport = new SocketTransport(socket, writers,
+                        new OutboundQueue(PEER_QUEUE_LIMIT, OutboundQueue.OverflowPolicy.DISCONNECT), bytesOut);
+                synchronized (this) {
+                    this.socket = socket;
+                    this.transport = transport;
+                    // Taken under the lock, so a user logging in right now is either in it or announced after it
+                    long now = System.currentTimeMillis();
+                    if (send("NODE_HELLO", new Hello(self, List.copyOf(local.usernames()), now, proof(self, now))))
+                        System.out.println("Linked to node " + node);
+                }
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        // A failed write closes the socket, that's how the dialer learns about it
+        private synchronized boolean isUp() {
+            return transport != null && !transport.isClosed();
+        }
+
+        // False if the link is down, whatever it was is lost
+        private boolean send(String type, Object message) {
+            Frame frame;
+            try {
+                frame = Frame.of(type, Json.MAPPER.writeValueAsString(message));
+            } catch (JsonProcessingException e) {
+                System.err.println("Could not encode " + type + " for node " + node + ": " + e.getMessage());
+                return false;
+            }
+            synchronized (this) {
+                if (!isUp()) return false;
+                if (transport.send(frame)) return true;
+            }
+            System.err.println("Node " + node + " fell too far behind, dropping the link to it");
+            close();
+            return false;
+        }
+
+        private synchronized void close() {
+            transport = null;
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ignored) {
+            }
+            socket = null;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import server.Server.Connection;
+import util.Codec;
+import util.FrameDeflater;
+
+// One selector thread serving many channels. Reading, framing and the protocol handlers
+// all run on the loop thread, so every command of one connection is handled in order.
+// Other threads (timers, games, other loops) only ever hand work over through `execute`.
+public class EventLoop implements Runnable {
+
+    // -----------------------------------   CONSTANTS   ------------------------------------------------
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_BATCH = 64; // Buffers handed to one gathering write
+
+    // -----------------------------------   SETUP   ------------------------------------------------
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Shared by all channels of this loop, as only one of them is being read at a time
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Supplier<OutboundQueue> outboundQueues;
+    private final LongAdder bytesOut; // Shared by all loops, see Server's metrics
+    private volatile Thread thread;
+
+    public EventLoop(Supplier<OutboundQueue> outboundQueues, LongAdder bytesOut) throws IOException {
+        this.selector = Selector.open();
+        this.outboundQueues = outboundQueues;
+        this.bytesOut = bytesOut;
+    }
+
+    public void register(SocketChannel channel, Function<Transport, Connection> connectionFactory) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                ChannelTransport transport = new ChannelTransport(channel, outboundQueues.get());
+                transport.key = channel.register(selector, SelectionKey.OP_READ, transport);
+                transport.connection = connectionFactory.apply(transport);
+                transport.connection.onOpen();
+            } catch (IOException e) {
+                System.err.println("Could not register a new connection: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) selector.wakeup();
+    }
+
+    private boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // -----------------------------------   LOOP   ------------------------------------------------
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (!thread.isInterrupted()) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ChannelTransport transport = (ChannelTransport) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) transport.flush();
+                        if (key.isValid() && key.isReadable()) read(transport);
+                    } catch (RuntimeException e) {
+                        // Costs this one connection, never the loop and everyone else on it
+                        System.err.println("Event loop failed to serve a connection: " + e);
+                        transport.peerClosed();
+                    }
+                }
+                // Flushes scheduled while handling the reads above run here, once per connection,
+                // so everything a connection got during this round goes out in one gathering write
+                runTasks();
+            } catch (IOException e) {
+                System.err.println("Event loop failed to select: " + e.getMessage());
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Event loop task failed: " + e);
+            }
+        }
+    }
+
+    private void read(ChannelTransport transport) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = transport.channel.read(readBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read == -1) {
+            transport.peerClosed();
+            return;
+        }
+
+        readBuffer.flip();
+        transport.connection.onBytes(readBuffer);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // -----------------------------------   CHANNEL TRANSPORT   ------------------------------------------------
+
+    private class ChannelTransport implements Transport {
+        private final SocketChannel channel;
+        private final OutboundQueue queue;
+        // Loop thread only. Frames taken out of the queue whose bytes are not all written yet.
+        private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private SelectionKey key;
+        private Connection connection;
+        private volatile boolean closing = false;
+        private Codec codec = Codec.TEXT; // Loop thread only, switched by the frames in the queue
+        private FrameDeflater deflater; // Loop thread only, once the connection agreed on deflate
+
+        private ChannelTransport(SocketChannel channel, OutboundQueue queue) {
+            this.channel = channel;
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean send(Frame frame) {
+            if (closing) return true;
+            if (!queue.offer(frame)) return false;
+            if (flushScheduled.compareAndSet(false, true)) execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            if (inEventLoop()) flush();
+            else execute(this::flush);
+        }
+
+        // The loop never blocks on a write, so the farewell gets one non-blocking attempt. Not on a deflated connection,
+        // with what was thrown away the other side couldn't inflate it anyway.
+        @Override
+        public void abort(Frame farewell) {
+            closing = true;
+            execute(() -> {
+                queue.clear();
+                writing.clear();
+                try {
+                    if (deflater == null) bytesOut.add(channel.write(farewell.buffer(codec)));
+                } catch (IOException ignored) {
+                }
+                release();
+            });
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closing || !channel.isOpen();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            EventLoop.this.execute(task);
+        }
+
+        // Loop thread only. Writes as much as the socket takes, the rest waits for OP_WRITE.
+        private void flush() {
+            if (!channel.isOpen()) return;
+            try {
+                while (true) {
+                    Frame frame;
+                    int deflated = 0;
+                    while (writing.size() < WRITE_BATCH && deflated < WRITE_BATCH && (frame = queue.poll()) != null) {
+                        if (frame.codecSwitch() != null) {
+                            codec = frame.codecSwitch();
+                            if (frame.deflates() && deflater == null) deflater = new FrameDeflater();
+                        } else if (deflater != null) {
+                            frame.writeTo(deflater, codec);
+                            deflated++;
+                        } else writing.add(frame.buffer(codec));
+                    }
+                    // The whole batch shares one sync flush. Its bytes are the deflater's, they're copied before it goes on.
+                    if (deflated > 0) {
+                        ByteBuffer synced = deflater.sync();
+                        writing.add(ByteBuffer.allocate(synced.remaining()).put(synced).flip());
+                    }
+                    if (writing.isEmpty()) break;
+                    bytesOut.add(channel.write(writing.toArray(ByteBuffer[]::new)));
+                    while (!writing.isEmpty() && !writing.peek().hasRemaining()) writing.poll();
+                    if (!writing.isEmpty()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing) release();
+            } catch (IOException e) {
+                peerClosed();
+            }
+        }
+
+        // The other side is gone, so nothing pending can be delivered anymore
+        private void peerClosed() {
+            if (!channel.isOpen()) return;
+            boolean closedByServer = closing; // disconnect() has already told everyone about it
+            closing = true;
+            queue.clear();
+            writing.clear();
+            release();
+            if (!closedByServer) connection.onClose();
+        }
+
+        // Loop thread only, the one thread that touches either deflate stream of the connection. They hold native
+        // memory, it goes with the channel instead of whenever the GC gets to them.
+        private void release() {
+            closeQuietly(channel);
+            if (deflater != null) deflater.close();
+            deflater = null;
+            if (connection != null) connection.releaseDecoder(); // Null if registering it failed
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package server;
+
+import util.Codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// One protocol message, encoded once per codec. A broadcast builds a single Frame and hands that same Frame
+// to every recipient, so the JSON and the encoding are paid once per message instead of once per user,
+// no matter how many of the recipients talk text and how many binary.
+public final class Frame {
+    private final String type;
+    private final String body;
+    private final boolean broadcast; // Broadcasts may be dropped for clients that can't keep up, see OutboundQueue
+    private final Codec switchTo; // Not a message at all, tells the writer to encode everything after it differently
+    private final boolean deflate; // With switchTo, the writer deflates everything after it too
+    // Never handed out, that's what keeps it immutable. Text is what most clients speak and what the queues count,
+    // binary is only encoded once the first binary client needs it. Two writers racing for that both get the same bytes.
+    private final byte[] text;
+    private volatile byte[] binary;
+
+    private Frame(String type, String body, boolean broadcast, Codec switchTo, boolean deflate) {
+        this.type = type;
+        this.body = body;
+        this.broadcast = broadcast;
+        this.switchTo = switchTo;
+        this.deflate = deflate;
+        this.text = switchTo == null ? Codec.TEXT.encode(type, body) : new byte[0];
+    }
+
+    public static Frame of(String line) {
+        String[] parts = line.split(" ", 2);
+        return of(parts[0], parts.length == 2 ? parts[1] : "");
+    }
+
+    public static Frame of(String type, String json) {
+        return new Frame(type, json, false, null, false);
+    }
+
+    public static Frame broadcast(String type, String json) {
+        return new Frame(type, json, true, null, false);
+    }
+
+    // Queued right behind the response to a PROTOCOL command, so that response still goes out in the old codec
+    public static Frame switchCodec(Codec codec) {
+        return switchCodec(codec, false);
+    }
+
+    public static Frame switchCodec(Codec codec, boolean deflate) {
+        return new Frame("", "", false, codec, deflate);
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public String body() {
+        return body;
+    }
+
+    public Codec codecSwitch() {
+        return switchTo;
+    }
+
+    // Whether the switch turns deflate on, see FrameDeflater
+    public boolean deflates() {
+        return deflate;
+    }
+
+    // Every caller gets its own position and limit over the same bytes
+    public ByteBuffer buffer(Codec codec) {
+        return ByteBuffer.wrap(bytes(codec)).asReadOnlyBuffer();
+    }
+
+    // Returns how many bytes that was
+    public int writeTo(OutputStream out, Codec codec) throws IOException {
+        byte[] bytes = bytes(codec);
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    private byte[] bytes(Codec codec) {
+        if (codec == Codec.TEXT) return text;
+        byte[] bytes = binary;
+        if (bytes == null) binary = bytes = codec.encode(type, body);
+        return bytes;
+    }
+
+    public int length() {
+        return text.length;
+    }
+
+    public boolean isBroadcast() {
+        return broadcast;
+    }
+
+    @Override
+    public String toString() {
+        return switchTo == null ? body.isEmpty() ? type : type + " " + body : "switch to " + switchTo + (deflate ? " deflated" : "");
+    }
+}
@@ -0,0 +1,361 @@
+package server;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import messages.RoomMessage;
+import messages.TextMessage;
+import util.Json;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+// Every BROADCAST and room message, numbered by one offset across all of them. The room of a broadcast is "".
+// Appending takes an offset and puts the entry in its slot of a ring of the most recent ones, nothing else, so the
+// sender never waits for the disk. A single writer thread follows the ring and appends the entries to a log of
+// memory-mapped segment files, a segment is named after the first offset in it. Replaying and paging through
+// recent history is served from the ring, only pages older than the ring go to the segments, read on a thread of their
+// own so whoever asked, an event loop say, doesn't wait on the disk. Every segment keeps where its entries are every
+// INDEX_SPACING bytes, so a page reads backwards from where it starts a block at a time, and it stops after MAX_SCAN
+// entries even when it found fewer than asked for, the page then says where to go on from.
+// Every record has a checksum, so a segment torn by a crash ends at the last whole record when it is opened again.
+// Without open() it is memory only, like in the embedded server of the benchmarks.
+public class History {
+
+    public record Entry(long offset, long time, String room, String username, String message, Frame frame) { }
+
+    // Oldest first. Before is where the next page starts, -1 when there is nothing older.
+    public record Page(List<Entry> entries, long before) { }
+
+    // -----------------------------------   CONSTANTS   ------------------------------------------------
+
+    private static final int RING = 8192; // A power of two
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int INDEX_SPACING = 64 * 1024; // Bytes of a segment between two of its index points
+    private static final int HEADER = 4 + 4 + 8 + 8 + 2 + 2; // Length, checksum, offset, time and the two string lengths
+    private static final int MAX_SCAN = Integer.getInteger("historyScan", 64 * 1024); // Entries read for one page from the disk
+    private static final int MAX_QUEUED_PAGES = 64; // Waiting for the reader, more are turned away
+    private static final int MAX_SEGMENTS = Integer.getInteger("historySegments", 16); // The oldest ones are deleted
+    private static final long IDLE_PARK = 1_000_000; // Nanoseconds the writer waits when it has caught up
+    private static final String SUFFIX = ".log";
+
+    // -----------------------------------   STATE   ------------------------------------------------
+
+    private final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(RING);
+    private final AtomicLong next = new AtomicLong();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final LongAdder dropped = new LongAdder(); // Overwritten in the ring before the writer got to them
+    private volatile long persisted; // Every offset below it is in a segment
+    // Pages from the segments, one at a time. The thread is only started by the first of them.
+    private final ExecutorService reader = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_PAGES),
+            Thread.ofPlatform().name("HistoryReader").daemon().factory());
+    private Path directory; // Null while memory only
+
+    // -----------------------------------   APPENDING   ------------------------------------------------
+
+    // The frame is the one that went out live, replays hand out the same one
+    public long append(String room, String username, String message, Frame frame) {
+        long offset = next.getAndIncrement();
+        ring.set(slot(offset), new Entry(offset, System.currentTimeMillis(), room, username, message, frame));
+        return offset;
+    }
+
+    // The last count messages of the room, oldest first, from the ring only
+    public void replay(String room, int count, Consumer<Frame> to) {
+        Entry[] found = new Entry[Math.min(count, RING)];
+        int n = 0;
+        long newest = next.get();
+        for (long offset = newest - 1; offset >= Math.max(0, newest - RING) && n < found.length; offset--) {
+            Entry entry = ring.get(slot(offset));
+            if (entry == null || entry.offset() < offset) continue; // Taken but not in its slot yet
+            if (entry.offset() > offset) break; // Overwritten, everything older is gone from the ring too
+            if (entry.room().equals(room)) found[n++] = entry;
+        }
+        for (int i = n - 1; i >= 0; i--) to.accept(found[i].frame());
+    }
+
+    // Up to limit messages of the room older than the offset before, oldest first. Before 0 means the newest ones.
+    // Complete right away when the ring has them all, later and on the reader thread when the segments are needed.
+    // Fails with a RejectedExecutionException when too many pages wait for the reader already.
+    public CompletableFuture<Page> page(String room, long before, int limit) {
+        long newest = next.get();
+        long from = before <= 0 || before > newest ? newest : before;
+        ArrayDeque<Entry> page = new ArrayDeque<>();
+        long offset = from - 1;
+        for (; offset >= Math.max(0, newest - RING) && page.size() < limit; offset--) {
+            Entry entry = ring.get(slot(offset));
+            if (entry == null || entry.offset() < offset) continue;
+            if (entry.offset() > offset) break;
+            if (entry.room().equals(room)) page.addFirst(entry);
+        }
+        long older = offset + 1;
+        if (page.size() == limit) return CompletableFuture.completedFuture(new Page(new ArrayList<>(page), older == 0 ? -1 : older));
+        if (offset < 0 || segments.headMap(older, false).isEmpty())
+            return CompletableFuture.completedFuture(new Page(new ArrayList<>(page), -1));
+        int needed = limit - page.size();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long next = pageFromDisk(room, older, needed, page);
+                return new Page(new ArrayList<>(page), next);
+            }, reader);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public long offset() {
+        return next.get();
+    }
+
+    public long persisted() {
+        return persisted;
+    }
+
+    public LongAdder dropped() {
+        return dropped;
+    }
+
+    private static int slot(long offset) {
+        return (int) (offset & (RING - 1));
+    }
+
+    // -----------------------------------   SEGMENTS   ------------------------------------------------
+
+    // Picks up where the log in the directory left off, ring included, then starts the writer
+    public void open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(file -> file.toString().endsWith(SUFFIX)).toList()) {
+                String name = file.getFileName().toString();
+                Segment segment = new Segment(file, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                segments.put(segment.base, segment);
+            }
+        }
+        long last = -1;
+        for (Segment segment : segments.values()) {
+            segment.recover();
+            if (segment.last >= 0) last = segment.last;
+        }
+        if (segments.isEmpty()) roll(0);
+        next.set(Math.max(last + 1, segments.lastKey()));
+        persisted = next.get();
+
+        // The newest RING entries go back into the ring, so replays survive a restart
+        for (Segment segment : segments.descendingMap().values()) {
+            if (segment.last >= 0 && segment.last < next.get() - RING) break;
+            segment.read(Long.MAX_VALUE, entry -> {
+                if (entry.offset() >= next.get() - RING) ring.set(slot(entry.offset()), withFrame(entry));
+            });
+        }
+        Thread.ofPlatform().name("HistoryWriter").daemon().start(this::write);
+        System.out.println("History at offset " + next.get() + " in " + segments.size() + " segments of " + directory);
+    }
+
+    // Makes sure what is written so far is on disk, not just in the page cache
+    public void force() {
+        for (Segment segment : segments.values()) segment.buffer.force();
+    }
+
+    private void write() {
+        while (true) {
+            long offset = persisted;
+            Entry entry = ring.get(slot(offset));
+            if (entry == null || entry.offset() < offset) {
+                LockSupport.parkNanos(IDLE_PARK);
+                continue;
+            }
+            if (entry.offset() == offset) {
+                try {
+                    writeEntry(entry);
+                } catch (IOException e) {
+                    System.err.println("Could not write history offset " + offset + ": " + e.getMessage());
+                    dropped.increment();
+                }
+            } else dropped.increment(); // A whole ring behind
+            persisted = offset + 1;
+        }
+    }
+
+    // [int length][int checksum][long offset][long time][short room length][room][short username length][username][message]
+    // The length counts everything after it, the checksum everything after itself.
+    private void writeEntry(Entry entry) throws IOException {
+        byte[] room = entry.room().getBytes(StandardCharsets.UTF_8);
+        byte[] username = entry.username().getBytes(StandardCharsets.UTF_8);
+        byte[] message = entry.message().getBytes(StandardCharsets.UTF_8);
+        int length = HEADER - 4 + room.length + username.length + message.length;
+
+        Segment segment = segments.lastEntry().getValue();
+        if (segment.end + 4 + length > SEGMENT_SIZE) segment = roll(entry.offset());
+        ByteBuffer buffer = segment.buffer;
+        int position = segment.end;
+        buffer.position(position);
+        buffer.putInt(length).putInt(0).putLong(entry.offset()).putLong(entry.time())
+                .putShort((short) room.length).put(room)
+                .putShort((short) username.length).put(username)
+                .put(message);
+        buffer.putInt(position + 4, checksum(buffer, position, length));
+        segment.indexed(entry.offset(), position);
+        segment.last = entry.offset();
+        segment.end = buffer.position(); // Readers go up to here
+    }
+
+    private static int checksum(ByteBuffer buffer, int position, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(position + 8, length - 4));
+        return (int) crc.getValue();
+    }
+
+    private Segment roll(long base) throws IOException {
+        if (!segments.isEmpty()) segments.lastEntry().getValue().buffer.force();
+        Segment segment = new Segment(directory.resolve(String.format("%020d%s", base, SUFFIX)), base);
+        segments.put(base, segment);
+        while (segments.size() > MAX_SEGMENTS) {
+            // The mapping stays valid for readers still going through it, the file is gone once they are done
+            Files.deleteIfExists(segments.pollFirstEntry().getValue().path);
+        }
+        return segment;
+    }
+
+    // Reads the segments backwards from the offset before, a block between two index points at a time, and keeps the
+    // newest matches. Returns where the next page starts: the oldest match once it has all it needs, the start of the
+    // last block read once it read MAX_SCAN entries, -1 when it got to the oldest segment.
+    private long pageFromDisk(String room, long before, int needed, ArrayDeque<Entry> page) {
+        int scanned = 0;
+        for (Segment segment : segments.headMap(before, false).descendingMap().values()) {
+            for (int block = segment.blockBefore(before); block >= 0; block--) {
+                ArrayDeque<Entry> found = new ArrayDeque<>();
+                scanned += segment.read(block, before, entry -> {
+                    if (entry.room().equals(room)) found.addLast(entry);
+                });
+                while (!found.isEmpty() && needed > 0) {
+                    page.addFirst(found.pollLast());
+                    needed--;
+                }
+                if (needed == 0) return page.getFirst().offset() == 0 ? -1 : page.getFirst().offset();
+                if (scanned >= MAX_SCAN) return segment.blockStart(block);
+            }
+        }
+        return -1;
+    }
+
+    private static Entry withFrame(Entry entry) {
+        try {
+            Frame frame = entry.room().isEmpty()
+                    ? Frame.broadcast("BROADCAST", Json.MAPPER.writeValueAsString(new TextMessage(entry.username(), entry.message())))
+                    : Frame.broadcast("ROOM_MESSAGE", Json.MAPPER.writeValueAsString(new RoomMessage(entry.room(), entry.username(), entry.message())));
+            return new Entry(entry.offset(), entry.time(), entry.room(), entry.username(), entry.message(), frame);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final long base;
+        private final MappedByteBuffer buffer; // Only the writer moves its position, readers go through duplicates
+        private volatile int end; // Bytes written so far
+        private volatile long last = -1; // Offset of the last entry in it
+        // The first entry starting at or after every INDEX_SPACING bytes, written before indexed is raised past them
+        private final long[] indexOffsets = new long[SEGMENT_SIZE / INDEX_SPACING];
+        private final int[] indexPositions = new int[SEGMENT_SIZE / INDEX_SPACING];
+        private volatile int indexed; // Index points so far
+
+        private Segment(Path path, long base) throws IOException {
+            this.path = path;
+            this.base = base;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE); // Stays mapped after closing
+            }
+        }
+
+        // Segments are zeros after their last entry, a length of 0 is where the writer stopped. A crash may have left
+        // part of a record there instead, the first one whose checksum doesn't match or whose offset doesn't follow the
+        // one before it ends the segment, and what is after it is zeroed so the writer starts over from a clean end.
+        private void recover() {
+            int position = 0;
+            long previous = base - 1;
+            while (position + HEADER <= SEGMENT_SIZE) {
+                int length = buffer.getInt(position);
+                if (length == 0) break;
+                long offset = buffer.getLong(position + 8);
+                if (length < HEADER - 4 || length > SEGMENT_SIZE - position - 4 || offset <= previous
+                        || buffer.getInt(position + 4) != checksum(buffer, position, length)) {
+                    System.err.println("History segment " + path + " ends at a broken record at " + position + ", dropping the rest of it");
+                    for (int zero = position; zero < SEGMENT_SIZE; zero++) buffer.put(zero, (byte) 0);
+                    break;
+                }
+                indexed(offset, position);
+                last = previous = offset;
+                position += 4 + length;
+            }
+            end = position;
+        }
+
+        private void indexed(long offset, int position) {
+            int points = indexed;
+            if (position < points * INDEX_SPACING) return;
+            indexOffsets[points] = offset;
+            indexPositions[points] = position;
+            indexed = points + 1;
+        }
+
+        // The last block starting with an offset below before, -1 if there is none
+        private int blockBefore(long before) {
+            int block = indexed - 1;
+            while (block >= 0 && indexOffsets[block] >= before) block--;
+            return block;
+        }
+
+        private long blockStart(int block) {
+            return indexOffsets[block];
+        }
+
+        // Everything in it, oldest first
+        private void read(long until, Consumer<Entry> to) {
+            for (int block = 0, blocks = indexed; block < blocks; block++) read(block, until, to);
+        }
+
+        // The entries of the block below until, oldest first. Returns how many it read.
+        private int read(int block, long until, Consumer<Entry> to) {
+            ByteBuffer view = buffer.duplicate();
+            int end = block + 1 < indexed ? indexPositions[block + 1] : this.end;
+            int position = indexPositions[block];
+            int read = 0;
+            while (position < end) {
+                view.position(position);
+                int length = view.getInt();
+                view.getInt(); // The checksum, looked at when the segment was opened
+                long offset = view.getLong();
+                if (offset >= until) break;
+                long time = view.getLong();
+                String room = string(view, view.getShort() & 0xFFFF);
+                String username = string(view, view.getShort() & 0xFFFF);
+                String message = string(view, position + 4 + length - view.position());
+                to.accept(new Entry(offset, time, room, username, message, null));
+                position += 4 + length;
+                read++;
+            }
+            return read;
+        }
+
+        private static String string(ByteBuffer view, int length) {
+            byte[] bytes = new byte[length];
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package server;
+
+import util.Metrics;
+import util.Opcodes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+// PRIVATE and SECURE messages to users who aren't online anywhere, kept until they log in. The bodies are stored as
+// they would have gone out, a SECURE one stays encrypted. Everything is appended to one log file and every recipient
+// has an index of where their messages are in it, a few primitive arrays, so a login reads its own records and nothing
+// else. Delivering a box appends a marker that empties it, once its messages are handed over, opening the log again
+// replays it to rebuild the indexes. Whatever couldn't be handed over is appended again after the marker, as it was.
+// Once most of the log is taken or expired it is rewritten with only what is still waiting.
+// Only users who have logged in before get mail, a made-up name is not found. Every sender has a quota too, so no one
+// sender fills the whole mailbox for everyone. Storing and taking run on the mailbox's own thread, the callers get a
+// future, so an event loop never waits for the disk or the lock.
+// Without open() nothing is kept, offline receivers are simply not found.
+public class Mailbox {
+
+    public record Mail(long time, String sender, String type, String body) { }
+
+    public enum Stored {
+        STORED,
+        UNKNOWN, // Nobody by that name has ever logged in, or there is no mailbox
+        FULL, // The recipient's box or the whole mailbox, or the log couldn't be written
+        SENDER_FULL // The sender has too much waiting for others already
+    }
+
+    // -----------------------------------   CONSTANTS   ------------------------------------------------
+
+    private static final int MAX_MESSAGES = Integer.getInteger("mailboxMessages", 100); // Per recipient
+    private static final int MAX_BYTES = Integer.getInteger("mailboxBytes", 64 * 1024); // Per recipient
+    private static final long MAX_TOTAL = Long.getLong("mailboxTotal", 64L * 1024 * 1024); // Waiting in the whole log
+    private static final int MAX_SENDER_BYTES = Integer.getInteger("mailboxSenderBytes", 1024 * 1024); // Waiting from one sender
+    private static final long TTL = TimeUnit.HOURS.toMillis(Long.getLong("mailboxTtl", 72)); // Then it is dropped unread
+    private static final long SWEEP_PERIOD = TimeUnit.MINUTES.toMillis(1);
+    private static final long COMPACT_AFTER = 1024 * 1024; // Bytes of log below which it is never rewritten
+    // MAIL is the sender-less record of older logs, they are still read
+    private static final byte MAIL = 1, TAKEN = 2, SEEN = 3, MAIL_FROM = 4;
+    private static final String FILE = "mailbox.log";
+
+    // -----------------------------------   STATE   ------------------------------------------------
+
+    private final ExecutorService io = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("Mailbox").daemon().factory());
+    private volatile boolean open = false; // Asked by handlers before they hand anything over, without the lock
+
+    // Guarded by this. Logins and offline messages are rare next to everything else, one lock is plenty.
+    private final Map<String, Box> boxes = new HashMap<>();
+    private final Set<String> known = new HashSet<>(); // Everyone who has logged in, mail is only kept for them
+    private final Map<String, Integer> sent = new HashMap<>(); // Bytes waiting by their sender, only while there are some
+    private FileChannel log; // Null while closed
+    private Path path;
+    private long end; // Bytes in the log
+    private long waiting; // Bytes of it still waiting, what counts against MAX_TOTAL
+    private int messages; // Messages still waiting
+
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    // -----------------------------------   MAILBOXES   ------------------------------------------------
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    // Completes once it's stored, or with why it isn't
+    public CompletableFuture<Stored> store(String sender, String recipient, String type, String body) {
+        return CompletableFuture.supplyAsync(() -> storeNow(sender, recipient, type, body), io);
+    }
+
+    // Hands what waits for the recipient to the predicate, oldest first, on the mailbox's thread. It says whether the
+    // message got queued for them. The first one it turns down and everything after it stay in the box for next time.
+    // Completes with how many were handed over.
+    public CompletableFuture<Integer> deliver(String recipient, Predicate<Mail> to) {
+        return CompletableFuture.supplyAsync(() -> deliverNow(recipient, to), io);
+    }
+
+    // The user logged in somewhere, from now on mail for them is kept
+    public void seen(String user) {
+        if (open) io.execute(() -> seenNow(user));
+    }
+
+    private synchronized Stored storeNow(String sender, String recipient, String type, String body) {
+        if (log == null || !known.contains(recipient)) return Stored.UNKNOWN;
+        Box box = boxes.computeIfAbsent(recipient, name -> new Box());
+        long time = System.currentTimeMillis();
+        byte[] record = record(MAIL_FROM, time, recipient, sender, type, body);
+        Stored refused = null;
+        if (sent.getOrDefault(sender, 0) + record.length > MAX_SENDER_BYTES) refused = Stored.SENDER_FULL;
+        else if (box.size() == MAX_MESSAGES || box.bytes + record.length > MAX_BYTES || waiting + record.length > MAX_TOTAL)
+            refused = Stored.FULL;
+        if (refused != null) {
+            if (box.size() == 0) boxes.remove(recipient);
+            rejected.increment();
+            return refused;
+        }
+        try {
+            long position = append(record);
+            box.add(position, time, record.length, sender);
+        } catch (IOException e) {
+            System.err.println("Could not store a message for " + recipient + ": " + e.getMessage());
+            if (box.size() == 0) boxes.remove(recipient);
+            return Stored.FULL;
+        }
+        waiting += record.length;
+        sent.merge(sender, record.length, Integer::sum);
+        messages++;
+        stored.increment();
+        return Stored.STORED;
+    }
+
+    private synchronized int deliverNow(String recipient, Predicate<Mail> to) {
+        Box box = boxes.get(recipient);
+        if (box == null) return 0;
+        long cutoff = System.currentTimeMillis() - TTL;
+        int handed = 0;
+        int next = box.first; // The first one still in the box
+        try {
+            for (; next < box.count; next++) {
+                if (box.times[next] < cutoff) {
+                    expired.increment();
+                    continue;
+                }
+                if (!to.test(read(record(box, next)))) break;
+                handed++;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read the messages for " + recipient + ": " + e.getMessage());
+        }
+        delivered.add(handed);
+        if (next == box.first) return handed; // Nothing left the box
+        boxes.remove(recipient);
+        forget(box);
+        try {
+            append(record(TAKEN, System.currentTimeMillis(), recipient, null, "", ""));
+            // The rest goes in again as it was, same time and sender
+            Box rest = new Box();
+            for (int i = next; i < box.count; i++) {
+                rest.add(append(record(box, i).array()), box.times[i], box.lengths[i], box.senders[i]);
+                waiting += box.lengths[i];
+                sent.merge(box.senders[i], box.lengths[i], Integer::sum);
+                messages++;
+            }
+            if (rest.size() > 0) boxes.put(recipient, rest);
+        } catch (IOException e) {
+            System.err.println("Could not empty the box of " + recipient + ": " + e.getMessage());
+        }
+        return handed;
+    }
+
+    private ByteBuffer record(Box box, int i) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(box.lengths[i]);
+        log.read(record, box.positions[i]);
+        return record.flip();
+    }
+
+    private synchronized void seenNow(String user) {
+        if (log == null || !known.add(user)) return;
+        try {
+            append(record(SEEN, System.currentTimeMillis(), user, null, "", ""));
+        } catch (IOException e) {
+            System.err.println("Could not remember " + user + " in the mailbox: " + e.getMessage());
+        }
+    }
+
+    public void exportTo(Metrics metrics) {
+        metrics.gauge("mailbox_messages", () -> { synchronized (this) { return messages; } });
+        metrics.gauge("mailbox_bytes", () -> { synchronized (this) { return waiting; } });
+        metrics.register("mailbox_stored_total", stored);
+        metrics.register("mailbox_delivered_total", delivered);
+        metrics.register("mailbox_expired_total", expired);
+        metrics.register("mailbox_rejected_total", rejected);
+    }
+
+    private void forget(Box box) {
+        for (int i = box.first; i < box.count; i++) {
+            waiting -= box.lengths[i];
+            unsent(box.senders[i], box.lengths[i]);
+        }
+        messages -= box.size();
+    }
+
+    private void unsent(String sender, int length) {
+        sent.computeIfPresent(sender, (name, bytes) -> bytes == length ? null : bytes - length);
+    }
+
+    // -----------------------------------   LOG   ------------------------------------------------
+
+    // Rebuilds the indexes from the log in the directory, then sweeps expired messages once a minute
+    public void open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        synchronized (this) {
+            path = directory.resolve(FILE);
+            log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            recover();
+            open = true;
+        }
+        Thread.ofPlatform().name("MailboxSweeper").daemon().start(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(SWEEP_PERIOD);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                sweep();
+            }
+        });
+        System.out.println("Mailbox holds " + messages + " messages for " + boxes.size() + " users in " + path);
+    }
+
+    public synchronized void force() {
+        try {
+            if (log != null) log.force(false);
+        } catch (IOException e) {
+            System.err.println("Could not flush the mailbox: " + e.getMessage());
+        }
+    }
+
+    // Drops what is past its TTL, and rewrites the log once it is mostly dead records
+    public synchronized void sweep() {
+        long cutoff = System.currentTimeMillis() - TTL;
+        for (Iterator<Box> boxes = this.boxes.values().iterator(); boxes.hasNext(); ) {
+            Box box = boxes.next();
+            // Oldest first, so the expired ones are always a prefix
+            while (box.first < box.count && box.times[box.first] < cutoff) {
+                waiting -= box.lengths[box.first];
+                unsent(box.senders[box.first], box.lengths[box.first]);
+                box.bytes -= box.lengths[box.first++];
+                messages--;
+                expired.increment();
+            }
+            if (box.first == box.count) boxes.remove();
+        }
+        if (end > COMPACT_AFTER && waiting < end / 2) {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("Could not compact the mailbox: " + e.getMessage());
+            }
+        }
+    }
+
+    private long append(byte[] record) throws IOException {
+        long position = end;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) log.write(buffer, position + buffer.position());
+        end += record.length;
+        return position;
+    }
+
+    // Copies who is known and the waiting records into a new log, every box keeps its order
+    private void compact() throws IOException {
+        Path compacted = path.resolveSibling(FILE + ".compacting");
+        long before = end;
+        try (FileChannel copy = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            long now = System.currentTimeMillis();
+            for (String user : known) {
+                ByteBuffer record = ByteBuffer.wrap(record(SEEN, now, user, null, "", ""));
+                while (record.hasRemaining()) position += copy.write(record, position);
+            }
+            for (Box box : boxes.values()) {
+                for (int i = box.first; i < box.count; i++) {
+                    ByteBuffer record = record(box, i);
+                    box.positions[i] = position;
+                    while (record.hasRemaining()) position += copy.write(record, position);
+                }
+            }
+            copy.force(false);
+            end = position;
+        }
+        log.close();
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        System.out.println("Mailbox compacted from " + before + " to " + end + " bytes");
+    }
+
+    // A record cut short by a crash ends the log, it gets written over
+    private void recover() throws IOException {
+        long cutoff = System.currentTimeMillis() - TTL;
+        long size = log.size();
+        ByteBuffer header = ByteBuffer.allocate(4);
+        long position = 0;
+        while (position + 4 <= size) {
+            header.clear();
+            log.read(header, position);
+            int length = header.flip().getInt();
+            if (length <= 0 || position + 4 + length > size) break;
+            ByteBuffer record = ByteBuffer.allocate(4 + length);
+            log.read(record, position);
+            record.flip().position(4);
+            byte kind = record.get();
+            long time = record.getLong();
+            String recipient = string(record, record.getShort() & 0xFFFF);
+            if (kind == SEEN) known.add(recipient);
+            else if (kind == TAKEN) {
+                Box box = boxes.remove(recipient);
+                if (box != null) forget(box);
+            } else if (time >= cutoff) {
+                String sender = kind == MAIL_FROM ? string(record, record.getShort() & 0xFFFF) : "";
+                boxes.computeIfAbsent(recipient, name -> new Box()).add(position, time, 4 + length, sender);
+                sent.merge(sender, 4 + length, Integer::sum);
+                waiting += 4 + length;
+                messages++;
+            }
+            position += 4 + length;
+        }
+        end = position;
+    }
+
+    // [int length][byte kind][long time][short recipient length][recipient]([short sender length][sender])[byte opcode][body]
+    // Only MAIL_FROM has the sender, TAKEN and SEEN are about the recipient alone.
+    private static byte[] record(byte kind, long time, String recipient, String sender, String type, String body) {
+        byte[] name = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] from = sender == null ? new byte[0] : sender.getBytes(StandardCharsets.UTF_8);
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 2 + name.length + (sender == null ? 0 : 2 + from.length) + 1 + content.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + length).putInt(length)
+                .put(kind).putLong(time)
+                .putShort((short) name.length).put(name);
+        if (sender != null) record.putShort((short) from.length).put(from);
+        return record.put(type.isEmpty() ? Opcodes.EXTENDED : Opcodes.of(type))
+                .put(content)
+                .array();
+    }
+
+    private static Mail read(ByteBuffer record) {
+        record.position(4);
+        byte kind = record.get();
+        long time = record.getLong();
+        int recipient = record.getShort() & 0xFFFF;
+        record.position(record.position() + recipient); // Whose it is, that's known already
+        String sender = kind == MAIL_FROM ? string(record, record.getShort() & 0xFFFF) : "";
+        String type = Opcodes.typeOf(record.get());
+        return new Mail(time, sender, type, string(record, record.remaining()));
+    }
+
+    private static String string(ByteBuffer record, int length) {
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Where a recipient's messages are in the log, oldest first. Expired ones are dropped off the front by moving first.
+    private static class Box {
+        private long[] positions = new long[4];
+        private long[] times = new long[4];
+        private int[] lengths = new int[4];
+        private String[] senders = new String[4]; // For their quotas
+        private int first, count;
+        private int bytes;
+
+        private void add(long position, long time, int length, String sender) {
+            if (count == positions.length && first > 0) { // Room left at the front by expired ones
+                System.arraycopy(positions, first, positions, 0, count - first);
+                System.arraycopy(times, first, times, 0, count - first);
+                System.arraycopy(lengths, first, lengths, 0, count - first);
+                System.arraycopy(senders, first, senders, 0, count - first);
+                Arrays.fill(senders, count - first, count, null);
+                count -= first;
+                first = 0;
+            }
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                times = Arrays.copyOf(times, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                senders = Arrays.copyOf(senders, count * 2);
+            }
+            positions[count] = position;
+            times[count] = time;
+            senders[count] = sender;
+            lengths[count++] = length;
+            bytes += length;
+        }
+
+        private int size() {
+            return count - first;
+        }
+    }
+}
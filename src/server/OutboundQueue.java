@@ -0,0 +1,90 @@
+package server;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// The frames waiting for one connection's writer, bounded in bytes. Any thread may offer,
+// only the connection's writer polls. When a client stops reading its socket the queue fills
+// up, and the OverflowPolicy decides what gives way, so the senders never have to wait for it.
+public class OutboundQueue {
+
+    // -----------------------------------   COUNTERS   ------------------------------------------------
+    // Server wide, one per policy outcome
+
+    public static final LongAdder DROPPED_OLDEST = new LongAdder();
+    public static final LongAdder DROPPED_NEW = new LongAdder();
+    public static final LongAdder DISCONNECTED = new LongAdder();
+
+    // -----------------------------------   SETUP   ------------------------------------------------
+
+    private final Queue<Frame> frames = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final long limit;
+    private final OverflowPolicy policy;
+
+    public OutboundQueue(long limit, OverflowPolicy policy) {
+        this.limit = limit;
+        this.policy = policy;
+    }
+
+    // Returns false when the policy says the connection has to go
+    public boolean offer(Frame frame) {
+        if (queuedBytes.get() + frame.length() > limit) {
+            if (policy == OverflowPolicy.DISCONNECT) {
+                DISCONNECTED.increment();
+                return false;
+            }
+            if (policy == OverflowPolicy.DROP_NEW && frame.isBroadcast()) {
+                DROPPED_NEW.increment();
+                return true;
+            }
+            if (policy == OverflowPolicy.DROP_OLDEST) dropOldestBroadcasts(frame.length());
+            // Only broadcasts are ever dropped. Responses and direct messages still get queued, up to
+            // twice the limit, past that not even the drop policies can keep the connection around.
+            if (queuedBytes.get() + frame.length() > 2 * limit) {
+                DISCONNECTED.increment();
+                return false;
+            }
+        }
+        queuedBytes.addAndGet(frame.length());
+        frames.add(frame);
+        return true;
+    }
+
+    public Frame poll() {
+        Frame frame = frames.poll();
+        if (frame != null) queuedBytes.addAndGet(-frame.length());
+        return frame;
+    }
+
+    public boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    public void clear() {
+        while (poll() != null) ;
+    }
+
+    // -----------------------------------   OVERFLOW   ------------------------------------------------
+
+    private void dropOldestBroadcasts(int needed) {
+        Iterator<Frame> queued = frames.iterator();
+        while (queuedBytes.get() + needed > limit && queued.hasNext()) {
+            Frame oldest = queued.next();
+            // remove() only succeeds if the writer did not take it in the meantime
+            if (oldest.isBroadcast() && frames.remove(oldest)) {
+                queuedBytes.addAndGet(-oldest.length());
+                DROPPED_OLDEST.increment();
+            }
+        }
+    }
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, // Make room by dropping the broadcasts that have waited the longest
+        DROP_NEW, // Keep what is queued, drop the broadcast that does not fit
+        DISCONNECT // Disconnect the client with 703
+    }
+}
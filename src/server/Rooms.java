@@ -0,0 +1,90 @@
+package server;
+
+import server.Server.Connection;
+import util.Histogram;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Named rooms and who is in them, a message to a room costs one delivery per member and nothing for everyone else.
+// The fan-out doesn't run on the sender's thread: every room is pinned to one of a few shard workers by its name,
+// so the messages of one room go out in the order they were sent while different rooms fan out in parallel.
+// Members are copy-on-write sets, joining is rare next to sending, and a fan-out iterates a snapshot without locking.
+// A room is gone once its last member leaves, and there are at most MAX_ROOMS at once, so made-up names can't pile up.
+public class Rooms {
+
+    public enum Joined {
+        JOINED,
+        ALREADY_IN,
+        TOO_MANY_ROOMS // It would have been a new room, and there are MAX_ROOMS already
+    }
+
+    public static final int MAX_ROOMS = Integer.getInteger("maxRooms", 10_000);
+
+    private final ConcurrentHashMap<String, Set<Connection>> rooms = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger(); // Rooms, kept next to the map so a join doesn't count them
+    private final ExecutorService[] shards;
+    private final Histogram fanOut; // Members reached by every message
+
+    public Rooms(int shardCount, Histogram fanOut) {
+        this.shards = new ExecutorService[shardCount];
+        for (int i = 0; i < shardCount; i++)
+            shards[i] = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("RoomShard_" + i).daemon().factory());
+        this.fanOut = fanOut;
+    }
+
+    // A room exists as long as someone is in it
+    public Joined join(String room, Connection member) {
+        Joined[] joined = new Joined[1];
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                if (count.incrementAndGet() > MAX_ROOMS) {
+                    count.decrementAndGet();
+                    joined[0] = Joined.TOO_MANY_ROOMS;
+                    return null;
+                }
+                members = new CopyOnWriteArraySet<>();
+            }
+            joined[0] = members.add(member) ? Joined.JOINED : Joined.ALREADY_IN;
+            return members;
+        });
+        return joined[0];
+    }
+
+    // False if they weren't in it
+    public boolean leave(String room, Connection member) {
+        boolean[] left = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            left[0] = members.remove(member);
+            if (!members.isEmpty()) return members;
+            count.decrementAndGet();
+            return null;
+        });
+        return left[0];
+    }
+
+    // To everyone in the room but the sender, who may be null for frames from another node.
+    // Members who join or leave meanwhile may or may not get it.
+    public void publish(String room, Frame frame, Connection sender) {
+        shards[Math.floorMod(room.hashCode(), shards.length)].execute(() -> {
+            Set<Connection> members = rooms.get(room);
+            if (members == null) return;
+            int delivered = 0;
+            for (Connection member : members) {
+                if (member != sender) {
+                    member.send(frame);
+                    delivered++;
+                }
+            }
+            fanOut.record(delivered);
+        });
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+}
@@ -2,19 +2,43 @@ package server;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
 
+import com.sun.net.httpserver.HttpServer;
 import exceptions.UserNotFoundException;
+import features.Bandwidth;
 import features.FileTransfer;
 import features.GuessingGame;
 import messages.*;
+import server.OutboundQueue.OverflowPolicy;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
+import util.Codec;
+import util.CommandRegistry;
+import util.FrameDecoder;
+import util.FrameDeflater;
+import util.FrameInflater;
+import util.Histogram;
+import util.Json;
+import util.Metrics;
+import util.TimingWheel;
+
 import static util.Util.*;
 
 public class Server {
@@ -22,189 +46,484 @@ public class Server {
     // -----------------------------------   SETUP   ------------------------------------------------
 
     private final ObjectMapper mapper;
-    private final Set<Connection> users = new HashSet<>();
+    // Logged in users by their username. Logging in reserves the name atomically with putIfAbsent,
+    // routing to a single user is one lookup no matter how many are online.
+    private final ConcurrentHashMap<String, Connection> users = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, GuessingGame> activeGames = new ConcurrentHashMap<>();
+    private final CommandRegistry<Connection> commands = new CommandRegistry<>();
+    private volatile FileTransfer fileTransfer; // Only once listening, the embedded server has none
+    private final Cluster cluster; // The other nodes and their users, see Cluster. A cluster of one by default.
+    private final Rooms rooms;
+    private final History history = new History(); // Broadcasts and room messages, see History
+    private final Mailbox mailbox = new Mailbox(); // Private messages for users who are offline, see Mailbox
+
+    // -----------------------------------   METRICS   ------------------------------------------------
+
+    // Recorded straight into these, see registerMetrics for everything else that gets reported
+    private final Metrics metrics = new Metrics();
+    private final LongAdder connectionsOpened = metrics.counter("connections_opened_total");
+    private final LongAdder connectionsClosed = metrics.counter("connections_closed_total");
+    private final LongAdder logins = metrics.counter("logins_total");
+    private final LongAdder bytesIn = metrics.counter("bytes_in_total");
+    private final LongAdder bytesOut = metrics.counter("bytes_out_total");
+    private final Histogram fanOut = metrics.histogram("broadcast_fanout"); // Recipients of every broadcast
+    private final AtomicInteger deflatedConnections = new AtomicInteger();
 
     // -----------------------------------   CONSTANTS   ------------------------------------------------
 
     private final String LOBBY_NAME_REGEX = "^[a-zA-Z0-9-_]+$"; // Name validity
     private final String USER_NAME_REGEX = "^[a-zA-Z0-9-_]{3,14}$"; // Name validity
-    private final int FILE_TRANSFER_PORT = 1338; // Port for file transfer thread
-    private final long HEARTBEAT_REACTION = 3; // Heartbeat Executor is working with seconds
-    private final long HEARTBEAT_PERIOD = 10; // Heartbeat Executor is working with seconds
+    private final int FILE_TRANSFER_PORT = Integer.getInteger("fileTransferPort", 1338); // Port for file transfer thread
+    private final long HEARTBEAT_REACTION = 3; // Seconds a client has to answer a PING
+    private final long HEARTBEAT_PERIOD = 10; // Seconds between two PINGs
+    private final int HISTORY_REPLAY = Integer.getInteger("historyReplay", 1000); // Broadcasts a user gets on login
+    private final int HISTORY_PAGE = 200; // Most entries a HISTORY response holds
+    private final int MAX_PENDING_TRANSFERS = 16; // Unanswered transfer offers a user holds, the oldest is forgotten first
+    private final int EVENT_LOOPS = Runtime.getRuntime().availableProcessors(); // Selector threads in NIO mode
+    private final int ROOM_SHARDS = Integer.getInteger("roomShards", Runtime.getRuntime().availableProcessors()); // Room fan-out workers
+    private final int ROOMS_PER_USER = Integer.getInteger("roomsPerUser", 32); // Rooms one connection may be in at once
+    // Bytes a client may have waiting to be written before the overflow policy kicks in, see OutboundQueue
+    private final int OUTBOUND_LIMIT = Integer.getInteger("outboundLimit", 1024 * 1024);
+    private final int MAX_FRAME_LENGTH = 64 * 1024; // Longer lines are never going to be terminated by a sane client
+    private final int READ_CHUNK = 8 * 1024; // Bytes read at once in the blocking mode
+    private final int METRICS_PORT = Integer.getInteger("metricsPort", 1339); // Local only, 0 turns it off
+    // Connections that may be deflated at once, each costs a few hundred KB of native memory. Past it PROTOCOL says no to deflate.
+    private final int MAX_DEFLATED = Integer.getInteger("maxDeflated", 1000);
 
     // -----------------------------------   CONFIG   ------------------------------------------------
 
     private final String greeting = "Welcome to the chatroom! Please login to start chatting!";
+    // What to do with clients that stop reading: -DoverflowPolicy=drop_oldest|drop_new|disconnect
+    private final OverflowPolicy overflowPolicy = OverflowPolicy.valueOf(System.getProperty("overflowPolicy", "drop_oldest").toUpperCase());
+    // Usernames allowed to send STATS: -Dadmins=alice,bob. Names aren't passwords, whoever logs in first with one is admin.
+    private final Set<String> admins = Arrays.stream(System.getProperty("admins", "").split(","))
+            .map(String::trim).filter(name -> !name.isEmpty()).collect(Collectors.toUnmodifiableSet());
+    private final Mode mode;
+    private final ExecutorService writers; // Drain the outbound queues of the blocking transports, see SocketTransport
+    // PING deadlines and PONG timeouts of every connection, the deadlines of the file transfer relay and the timers of every game.
+    // 100ms ticks, 512 of them make a round of ~51s.
+    private final TimingWheel timers = new TimingWheel(100, TimeUnit.MILLISECONDS, 512, Thread.ofPlatform().name("Timers").daemon().factory());
 
     public Server(int SERVER_PORT) {
-        this.mapper = new ObjectMapper();
+        this(SERVER_PORT, Mode.THREADS);
+    }
+
+    public Server(int SERVER_PORT, Mode mode) {
+        this(mode);
+        // Registered here, startServer never returns
+        Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownHandler(this)));
         startServer(SERVER_PORT);
     }
 
+    // Everything but the listening. Connections are then created over any Transport, the benchmarks use in-memory ones.
+    public Server(Mode mode) {
+        this.mapper = Json.MAPPER;
+        this.mode = mode;
+        this.writers = mode == Mode.VIRTUAL
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Writer_", 0).factory())
+                : Executors.newCachedThreadPool(Thread.ofPlatform().name("Writer_", 0).daemon().factory());
+        this.cluster = Cluster.fromConfig(new LocalUsers(), timers);
+        this.rooms = new Rooms(ROOM_SHARDS, metrics.histogram("room_fanout"));
+        registerCommands();
+        registerMetrics();
+    }
+
+    // Pass "nio" as the first argument to run on the selector based event loops, "virtual" for virtual threads.
+    // -Dport, -DfileTransferPort and -DmetricsPort move the ports, e.g. to run the nodes of a cluster on one box.
     public static void main(String[] args) {
-        Server server = new Server(1337);
-        Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownHandler(server)));
+        Mode mode = args.length > 0 ? Mode.valueOf(args[0].toUpperCase()) : Mode.THREADS;
+        new Server(Integer.getInteger("port", 1337), mode);
     }
 
     // -----------------------------------   CONNECTION HANDLING   ------------------------------------------------
 
+    // Empty turns what is kept there off. Nodes of a cluster on one box can't share one, so theirs are named after them.
+    private String dataDirectory(String property, String name) {
+        return System.getProperty(property, cluster.isClustered() ? name + "_" + cluster.self() : name);
+    }
+
     private void startServer(int port) {
-        System.out.println("Server now running on port " + port);
+        System.out.println("Server now running on port " + port + " in " + mode + " mode");
         // File transferring server section, on different port
-        new Thread(new FileTransfer(FILE_TRANSFER_PORT), "FileTransferSector").start();
+        fileTransfer = new FileTransfer(FILE_TRANSFER_PORT, threadBuilder().name("FileTransferActor_", 0).factory(), timers,
+                Bandwidth.fromConfig(() -> bytesIn.sum() + bytesOut.sum()));
+        new Thread(fileTransfer, "FileTransferSector").start();
+        startMetricsEndpoint();
+        cluster.start();
+        String historyDirectory = dataDirectory("historyDir", "history");
+        if (!historyDirectory.isBlank()) {
+            try {
+                history.open(Path.of(historyDirectory));
+            } catch (IOException e) {
+                System.err.println("Could not open the history log, keeping it in memory only: " + e.getMessage());
+            }
+        }
+        String mailboxDirectory = dataDirectory("mailboxDir", "mailbox");
+        if (!mailboxDirectory.isBlank()) {
+            try {
+                mailbox.open(Path.of(mailboxDirectory));
+            } catch (IOException e) {
+                System.err.println("Could not open the mailbox, offline users won't get messages: " + e.getMessage());
+            }
+        }
         // Handle connections for protocol messages
+        if (mode == Mode.NIO) {
+            startEventLoops(port);
+            return;
+        }
+        Thread.Builder connectionThreads = threadBuilder().name("Connection_", 0);
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             while (true) {
                 Socket socket = serverSocket.accept();
                 Connection connection = new Connection(socket);
-                new Thread(connection).start();
+                connectionThreads.start(connection);
             }
         } catch (IOException e) {
             System.err.println("A client has disconnected abruptly");
         }
     }
 
+    // Accepting stays blocking on this thread, the accepted channels are spread over the loops round-robin
+    private void startEventLoops(int port) {
+        EventLoop[] loops = new EventLoop[EVENT_LOOPS];
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(this::newOutboundQueue, bytesOut);
+                new Thread(loops[i], "EventLoop_" + i).start();
+            }
+            serverChannel.bind(new InetSocketAddress(port));
+            for (int next = 0; ; next = (next + 1) % loops.length) {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel, Connection::new);
+            }
+        } catch (IOException e) {
+            System.err.println("The event loops have stopped accepting connections: " + e.getMessage());
+        }
+    }
+
+    private OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(OUTBOUND_LIMIT, overflowPolicy);
+    }
+
+    // Threads for everything that still blocks: connections (unless NIO) and file transfer actors
+    private Thread.Builder threadBuilder() {
+        return mode == Mode.VIRTUAL ? Thread.ofVirtual() : Thread.ofPlatform();
+    }
+
+    public enum Mode {
+        THREADS, // A platform thread per connection, blocking reads
+        VIRTUAL, // A virtual thread per connection, same blocking reads, but idle connections only cost a small heap stack
+        NIO // A few selector threads, see EventLoop
+    }
+
+    // -----------------------------------   COMMANDS   ------------------------------------------------
+
+    // Everything a client may send. Records are parsed once by the shared readers in Json before the handler runs.
+    private void registerCommands() {
+        commands.register("PONG", (connection, body) -> connection.handleHeartbeat())
+                .register("LOGIN", Username.class, Connection::handleLogin)
+                .register("BROADCAST", TextMessage.class, Connection::handleBroadcast)
+                .register("PRIVATE", TextMessage.class, Connection::handlePrivate)
+                .register("LIST", (connection, body) -> connection.handleList())
+                .register("GAME_LAUNCH", Lobby.class, Connection::handleGameLaunch)
+                .register("GAME_JOIN", Lobby.class, Connection::handleGameJoin)
+                .register("GAME_GUESS", Connection::handleGameGuess)
+                .register("SEND_FILE", FileTransferRequest.class, Connection::handleTransferRequest)
+                .register("TRANSFER_RESPONSE", FileTransferResponse.class, Connection::handleTransferResponse)
+                .register("TRANSFER_RESUME", FileTransferResume.class, Connection::handleTransferResume)
+                .register("PUBLIC_KEY_REQ", Username.class, Connection::handlePublicKeyReq)
+                .register("PUBLIC_KEY_RES", KeyExchange.class, Connection::handlePublicKeyRes)
+                .register("SESSION_KEY", KeyExchange.class, Connection::handleSessionKey)
+                .register("SECURE_READY", Username.class, Connection::handleSecureReady)
+                .register("SECURE", TextMessage.class, Connection::handleSecure)
+                .register("LEAVE", (connection, body) -> connection.disconnect(700))
+                .register("JOIN_ROOM", Room.class, Connection::handleJoinRoom)
+                .register("LEAVE_ROOM", Room.class, Connection::handleLeaveRoom)
+                .register("ROOM_MESSAGE", RoomMessage.class, Connection::handleRoomMessage)
+                .register("HISTORY", HistoryRequest.class, Connection::handleHistory)
+                .register("PROTOCOL", Protocol.class, Connection::handleProtocol)
+                .register("STATS", (connection, body) -> connection.handleStats());
+    }
+
+    // -----------------------------------   METRICS   ------------------------------------------------
+
+    // Gauges are read from what the server keeps anyway, only when someone asks for them
+    private void registerMetrics() {
+        commands.exportTo(metrics);
+        metrics.gauge("connections_open", () -> connectionsOpened.sum() - connectionsClosed.sum());
+        metrics.gauge("users_online", users::size);
+        metrics.gauge("games_active", activeGames::size);
+        metrics.gauge("rooms_active", rooms::size);
+        metrics.gauge("history_offset", history::offset);
+        metrics.gauge("history_persisted", history::persisted);
+        metrics.register("history_dropped_total", history.dropped());
+        mailbox.exportTo(metrics);
+        metrics.gauge("file_transfers_active", () -> fileTransfer == null ? 0 : fileTransfer.activeTransfers());
+        metrics.gauge("file_transfers_waiting", () -> fileTransfer == null ? 0 : fileTransfer.waitingSessions());
+        metrics.gauge("file_transfers_queued", () -> fileTransfer == null ? 0 : fileTransfer.queuedTransfers());
+        metrics.gauge("file_transfers_expired_total", () -> fileTransfer == null ? 0 : fileTransfer.expiredSessions());
+        metrics.gauge("file_transfers_rejected_total", () -> fileTransfer == null ? 0 : fileTransfer.rejectedSessions());
+        metrics.gauge("file_transfer_buffers", () -> fileTransfer == null ? 0 : fileTransfer.relayBuffers());
+        metrics.gauge("file_transfer_throttled_ms_total", () -> fileTransfer == null ? 0 : fileTransfer.throttledMillis());
+        metrics.gauge("connections_deflated", deflatedConnections::get);
+        metrics.gauge("deflate_bytes_saved_out_total", () -> FrameDeflater.RAW.sum() - FrameDeflater.DEFLATED.sum());
+        metrics.gauge("deflate_bytes_saved_in_total", () -> FrameInflater.INFLATED.sum() - FrameInflater.DEFLATED.sum());
+        metrics.register("outbound_dropped_oldest_total", OutboundQueue.DROPPED_OLDEST);
+        metrics.register("outbound_dropped_new_total", OutboundQueue.DROPPED_NEW);
+        metrics.register("outbound_disconnected_total", OutboundQueue.DISCONNECTED);
+        metrics.gauge("cluster_users_remote", () -> cluster.remoteUsers().size());
+        metrics.gauge("cluster_peers_up", cluster::peersUp);
+        metrics.register("cluster_relayed_total", cluster.relayed());
+        metrics.register("cluster_bytes_out_total", cluster.bytesOut());
+    }
+
+    // The same text STATS answers with, over plain HTTP on the loopback interface: curl localhost:1339/metrics
+    private void startMetricsEndpoint() {
+        if (METRICS_PORT == 0) return;
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), METRICS_PORT), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();
+        } catch (IOException e) {
+            System.err.println("Could not start the metrics endpoint on port " + METRICS_PORT + ": " + e.getMessage());
+        }
+    }
+
     // -----------------------------------   CONNECTION   ------------------------------------------------
 
     public class Connection implements Runnable {
-        private final Socket allocatedSocket;
-        private final PrintWriter out;
-        private final BufferedReader in;
-        private boolean alive = true, hasLoggedIn = false, inGame = false;
-        public String username = "";
-        private final List<FileTransferRequest> pendingFTRequests = new LinkedList<>(); // todo: maybe change to a map String:FileTransferRequest?
+        private final Transport transport;
+        private final InputStream in; // Only used in the blocking mode, the event loops read by themselves
+        private final FrameDecoder decoder = new FrameDecoder(MAX_FRAME_LENGTH); // Text until the client asks for binary
+        private boolean inGame = false;
+        // Login may finish on a cluster thread, when the name's registrar is another node
+        private volatile boolean hasLoggedIn = false, loggingIn = false;
+        private volatile boolean alive = true; // Set by the PONG handler, checked on the timers
+        private volatile TimingWheel.Timeout heartbeat; // Whatever heartbeat step is due next
+        public volatile String username = "";
+        // Offers made to this user by session, answered with one lookup. Bounded, a flood of offers pushes out the oldest ones.
+        private final Map<UUID, FileTransferRequest> pendingFTRequests = Collections.synchronizedMap(new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, FileTransferRequest> eldest) {
+                return size() > MAX_PENDING_TRANSFERS;
+            }
+        });
+        private final AtomicBoolean counted = new AtomicBoolean(); // Whether its closing made it into the metrics yet
+        private final AtomicBoolean paging = new AtomicBoolean(); // A HISTORY page is on its way, one at a time
+        private volatile boolean deflated = false; // Counted in deflatedConnections until it closes
+        private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet(); // Left for them when they go
 
         public Connection(Socket allocatedSocket) throws IOException {
-            this.allocatedSocket = allocatedSocket;
-            this.out = new PrintWriter(allocatedSocket.getOutputStream(), true);
-            this.in = new BufferedReader(new InputStreamReader(allocatedSocket.getInputStream()));
+            this.transport = new SocketTransport(allocatedSocket, writers, newOutboundQueue(), bytesOut);
+            this.in = allocatedSocket.getInputStream();
+        }
+
+        public Connection(Transport transport) {
+            this.transport = transport;
+            this.in = null;
         }
 
         // -----------------------------------   MESSAGE HANDLING   ------------------------------------------------
 
         @Override
         public void run() {
-            System.out.println("New connection to the server established");
             try {
-                out.println("GREET " + mapper.writeValueAsString(new SystemMessage(greeting)));
-                while (!allocatedSocket.isClosed()) {
-                    String message = in.readLine();
-                    if (message == null) {
+                onOpen();
+                byte[] chunk = new byte[READ_CHUNK];
+                while (!transport.isClosed()) {
+                    int read = in.read(chunk);
+                    if (read == -1) {
                         handleClientDisconnection();
                         break;
                     }
-                    messageHandler(message);
+                    onBytes(ByteBuffer.wrap(chunk, 0, read));
                 }
             } catch (IOException e) {
                 handleClientDisconnection();
+            } finally {
+                releaseDecoder();
+                try {
+                    transport.close(); // After a disconnect the client started, the socket is only closed here
+                } catch (IOException ignored) {
+                }
             }
         }
 
-        private void messageHandler(String message) throws IOException {
-            String[] messageParts = message.split(" ", 2);
-            String type = messageParts[0];
-            String json = messageParts.length == 2 ? messageParts[1] : "";
+        // Called by whatever reads for this connection, on its thread, once it's done reading
+        public void releaseDecoder() {
+            decoder.close();
+        }
+
+        // Called by whatever reads for this connection: its event loop, run() in the blocking mode, or a benchmark
+        public void onOpen() throws JsonProcessingException {
+            System.out.println("New connection to the server established");
+            connectionsOpened.increment();
+            send("GREET " + mapper.writeValueAsString(new SystemMessage(greeting)));
+        }
 
+        // Whatever was read, complete frames get handled right away, the rest waits in the decoder
+        public void onBytes(ByteBuffer bytes) {
+            bytesIn.add(bytes.remaining());
             try {
-                switch (type) {
-                    case "PONG" -> handleHeartbeat();
-                    case "LOGIN" -> handleLogin(json);
-                    case "BROADCAST" -> handleBroadcast(json);
-                    case "PRIVATE" -> handlePrivate(json);
-                    case "LIST" -> handleList();
-                    case "GAME_LAUNCH" -> handleGameLaunch(json);
-                    case "GAME_JOIN" -> handleGameJoin(json);
-                    case "GAME_GUESS" -> handleGameGuess(json);
-                    case "SEND_FILE" -> handleTransferRequest(json);
-                    case "TRANSFER_RESPONSE" -> handleTransferResponse(json);
-                    case "PUBLIC_KEY_REQ" -> handlePublicKeyReq(json);
-                    case "PUBLIC_KEY_RES" -> handlePublicKeyRes(json);
-                    case "SESSION_KEY" -> handleSessionKey(json);
-                    case "SECURE_READY" -> handleSecureReady(json);
-                    case "SECURE" -> handleSecure(json);
-                    case "LEAVE" -> disconnect(700);
-                    default -> out.println("UNKNOWN_ACTION");
-                }
+                decoder.feed(bytes, this::onFrame);
+            } catch (IOException e) {
+                // Too long or malformed, nothing after it can be framed anymore
+                disconnectQuietly(701);
+            } catch (RuntimeException e) {
+                // A bug in the decoder, it can't be trusted with this connection's bytes anymore
+                System.err.println("Failed to decode what " + describe() + " sent: " + e);
+                disconnectQuietly(704);
+            }
+        }
+
+        private void onFrame(String type, String json) {
+            if (transport.isClosed()) return; // The rest of a read that came after LEAVE or a disconnect
+            try {
+                messageHandler(type, json);
+            } catch (IOException e) {
+                handleClientDisconnection();
+            } catch (RuntimeException e) {
+                // Whatever a handler throws ends this connection only, never the thread or event loop reading it
+                System.err.println("Failed to handle " + type + " from " + describe() + ": " + e);
+                disconnectQuietly(704);
+            }
+        }
+
+        private void disconnectQuietly(int reason) {
+            try {
+                disconnect(reason);
+            } catch (IOException | RuntimeException ignored) {
+                handleClientDisconnection();
+            }
+        }
+
+        private String describe() {
+            return username.isEmpty() ? "a client that hasn't logged in" : username;
+        }
+
+        public void onClose() {
+            handleClientDisconnection();
+        }
+
+        private void messageHandler(String type, String json) throws IOException {
+            try {
+                if (!commands.dispatch(this, type, json)) send("UNKNOWN_ACTION");
             } catch (JsonProcessingException e) {
-                out.println("PARSE_ERROR");
+                send("PARSE_ERROR");
             }
         }
 
         // -----------------------------------   GENERAL HANDLERS   ------------------------------------------------
 
         private void handleList() throws JsonProcessingException {
-            List<String> online = users.stream().filter(user -> !this.username.equals(user.username)).map(user -> user.username).collect(Collectors.toList());
+            List<String> online = users.keySet().stream().filter(username -> !this.username.equals(username)).collect(Collectors.toList());
+            online.addAll(cluster.remoteUsers());
             sendResponse("LIST", 800, online);
         }
 
-        private void handlePrivate(String json) throws JsonProcessingException {
+        private void handlePrivate(TextMessage request) throws JsonProcessingException {
             if (isNotLoggedIn()) return;
 
-            String message = getPropertyFromJson(json, "message");
-            String receiverName = getPropertyFromJson(json, "username");
+            String message = request.message();
+            String receiverName = request.username();
 
             if (this.username.equals(receiverName)) {
                 sendResponse("PRIVATE", 822, "ERROR");
                 return;
             }
 
+            Frame frame = Frame.of("PRIVATE", mapper.writeValueAsString(new TextMessage(this.username, message)));
             try {
-                Connection receiver = findUserByUsername(receiverName);
-                receiver.out.println("PRIVATE " + mapper.writeValueAsString(new TextMessage(this.username, message)));
+                sendTo(receiverName, frame);
             } catch (UserNotFoundException e) {
-                String notFoundJson = mapper.writeValueAsString(new NotFound("receiver", receiverName));
-                sendResponse("PRIVATE", 711, notFoundJson);
+                sendLater("PRIVATE", "receiver", receiverName, frame);
+                return;
             }
 
             sendResponse("PRIVATE", 800, "OK");
         }
 
-        private void handleBroadcast(String json) throws JsonProcessingException {
+        private void handleBroadcast(TextMessage request) throws JsonProcessingException {
             if (isNotLoggedIn()) return;
 
-            String message = getPropertyFromJson(json, "message");
-            users.stream()
-                    .filter(user -> !user.username.equals(this.username))
-                    .forEach(user -> {
-                        try {
-                            user.out.println("BROADCAST " + mapper.writeValueAsString(new TextMessage(this.username, message)));
-                        } catch (JsonProcessingException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
+            Frame frame = Frame.broadcast("BROADCAST", mapper.writeValueAsString(new TextMessage(this.username, request.message())));
+            history.append("", this.username, request.message(), frame);
+            broadcast(frame);
+            cluster.fanOut(frame);
             sendResponse("BROADCAST", 800, "OK");
         }
 
-        private void handleLogin(String json) throws JsonProcessingException {
-            if (!username.isBlank() && hasLoggedIn) {
+        private void handleLogin(Username request) throws JsonProcessingException {
+            if (!username.isBlank() && hasLoggedIn || loggingIn) {
                 sendResponse("LOGIN", 810, "ERROR");
                 return;
             }
 
-            String username = getPropertyFromJson(json, "username");
+            String username = request.username();
 
-            Connection userWithThisUsername = users.stream().filter(user -> user.username.equals(username)).findAny().orElse(null);
+            if (!username.matches(USER_NAME_REGEX)) {
+                sendResponse("LOGIN", 811, "ERROR");
+                return;
+            }
+
+            // The name's registrar says whether this node may have it, right away unless that's another node
+            loggingIn = true;
+            // Once it's in users, every way out of here or of the connection tells the registrar the name is free again
+            cluster.claim(username).whenComplete((granted, failure) -> {
+                try {
+                    finishLogin(username, failure == null ? granted : null);
+                } catch (JsonProcessingException e) {
+                    handleClientDisconnection();
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to log " + username + " in: " + e);
+                    disconnectQuietly(704);
+                } finally {
+                    loggingIn = false;
+                }
+            });
+        }
 
-            if (userWithThisUsername != null) {
+        // Null if the registrar could not be asked
+        private void finishLogin(String username, Boolean granted) throws JsonProcessingException {
+            if (granted == null) {
+                sendResponse("LOGIN", 813, "ERROR");
+                return;
+            }
+            // Two connections of this node racing for the same name can't both get past this
+            if (!granted || users.putIfAbsent(username, this) != null) {
                 sendResponse("LOGIN", 812, "ERROR");
                 return;
             }
 
-            if (username.matches(USER_NAME_REGEX)) {
-                this.username = username;
-                new Thread(new Heartbeat(), this.username + "Heartbeat").start();
-                sendResponse("LOGIN", 800, "OK");
-                users.forEach(user -> {
-                    try {
-                        user.out.println("ARRIVED " + mapper.writeValueAsString(new SystemMessage(this.username)));
-                    } catch (JsonProcessingException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
-                users.add(this);
-                hasLoggedIn = !hasLoggedIn;
-            } else sendResponse("LOGIN", 811, "ERROR");
+            this.username = username;
+            hasLoggedIn = true;
+            if (transport.isClosed()) { // Gone while the registrar was asked
+                handleClientDisconnection();
+                return;
+            }
+            heartbeat = timers.schedule(this::ping, HEARTBEAT_PERIOD, TimeUnit.SECONDS);
+            broadcast(Frame.broadcast("ARRIVED", mapper.writeValueAsString(new SystemMessage(this.username))));
+            cluster.joined(username);
+            sendResponse("LOGIN", 800, "OK");
+            history.replay("", HISTORY_REPLAY, this::send); // The very frames that went out live, nothing is encoded again
+            mailbox.seen(username);
+            mailbox.deliver(username, this::deliverMail); // Queued back to back, written together
+            logins.increment();
+        }
+
+        // On the mailbox's thread. Mail that isn't queued stays in the mailbox, a closed connection would only throw it away.
+        private boolean deliverMail(Mailbox.Mail waiting) {
+            if (transport.isClosed()) return false;
+            if (transport.send(Frame.of(waiting.type(), waiting.body()))) return true;
+            dropSlowConsumer();
+            return false;
         }
 
         private void handleHeartbeat() throws JsonProcessingException {
@@ -215,17 +534,60 @@ public class Server {
             alive = true;
         }
 
-        private void disconnect(int reason) throws IOException {
-            out.println("DISCONNECTED " + mapper.writeValueAsString(new SystemMessage(String.valueOf(reason))));
-            users.remove(this);
-            users.forEach(user -> {
-                try {
-                    user.out.println("LEFT " + mapper.writeValueAsString(new SystemMessage(this.username)));
-                } catch (JsonProcessingException e) {
-                    throw new RuntimeException(e);
+        // Switches both directions at once. The response still goes out in the old codec, everything queued after it
+        // in the new one. The client sends nothing until it has that response, see ProtocolWriter.
+        // Deflate is only ever turned on, "binary+deflate" in the response says it was. Asked for when there's no room
+        // for another deflated connection, the answer is just the codec and both sides go on without it.
+        private void handleProtocol(Protocol request) throws JsonProcessingException {
+            if (hasLoggedIn) {
+                sendResponse("PROTOCOL", 870, "ERROR");
+                return;
+            }
+            String codecName = request.codec();
+            Codec codec = codecName == null ? decoder.getCodec() : Codec.forName(codecName);
+            if (codec == null) {
+                sendResponse("PROTOCOL", 871, codecName);
+                return;
+            }
+            boolean deflate = deflated || "deflate".equalsIgnoreCase(request.compression()) && reserveDeflate();
+            sendResponse("PROTOCOL", 800, codec.name().toLowerCase() + (deflate ? "+deflate" : ""));
+            send(Frame.switchCodec(codec, deflate));
+            decoder.setCodec(codec);
+            if (deflate && !decoder.isInflating()) decoder.setInflater(new FrameInflater());
+        }
+
+        private boolean reserveDeflate() {
+            synchronized (counted) {
+                if (counted.get()) return false; // Closed already, countClosed wouldn't give it back
+                if (deflatedConnections.incrementAndGet() > MAX_DEFLATED) {
+                    deflatedConnections.decrementAndGet();
+                    return false;
                 }
-            });
-            allocatedSocket.close();
+                deflated = true;
+                return true;
+            }
+        }
+
+        // Admins only, everyone else could learn who is online and how busy the server is
+        private void handleStats() throws JsonProcessingException {
+            if (isNotLoggedIn()) return;
+            if (!admins.contains(username)) {
+                sendResponse("STATS", 880, "ERROR");
+                return;
+            }
+            sendResponse("STATS", 800, metrics.render());
+        }
+
+        void disconnect(int reason) throws IOException {
+            stopHeartbeat();
+            countClosed();
+            leaveRooms();
+            send("DISCONNECTED " + mapper.writeValueAsString(new SystemMessage(String.valueOf(reason))));
+            if (users.remove(this.username, this)) {
+                broadcast(Frame.broadcast("LEFT", mapper.writeValueAsString(new SystemMessage(this.username))));
+                cluster.left(this.username);
+            }
+            transport.close();
         }
 
         // -----------------------------------   FILE TRANSFER HANDLERS   ------------------------------------------------
@@ -233,24 +595,28 @@ public class Server {
         // REQUEST FROM THE INITIATOR TO THE SUBJECT.
         // SUBJECT: receiver.
         // INITIATOR: sender.
-        private void handleTransferRequest(String json) throws JsonProcessingException {
+        private void handleTransferRequest(FileTransferRequest offer) throws JsonProcessingException {
             if (isNotLoggedIn()) return;
 
-            String filename = getPropertyFromJson(json, "filename");
-            String receiverName = getPropertyFromJson(json, "receiver");
-            String checksum = getPropertyFromJson(json, "checksum");
-            UUID sessionId = UUID.fromString(getPropertyFromJson(json, "sessionId"));
+            String receiverName = offer.receiver();
 
             if (receiverName.equalsIgnoreCase(this.username)) {
                 sendResponse("SEND_FILE", 861, "ERROR");
                 return;
             }
+            if (offer.streams() < 1 || offer.streams() > FileTransferRequest.MAX_STREAMS) {
+                sendResponse("SEND_FILE", 862, FileTransferRequest.MAX_STREAMS); // The receiver would split the file by it
+                return;
+            }
 
             try {
-                Connection receiver = findUserByUsername(receiverName);
-                FileTransferRequest request = new FileTransferRequest(filename, receiver.username, this.username, sessionId, checksum);
-                receiver.out.println("TRANSFER_REQUEST " + mapper.writeValueAsString(request));
-                receiver.addPendingFileTransferRequest(request);
+                // A receiver on another node has to come over to the relay of this one, the sender is connected here
+                String relay = users.containsKey(receiverName) ? "" : cluster.host() + ":" + FILE_TRANSFER_PORT;
+                FileTransferRequest request = new FileTransferRequest(offer.filename(), receiverName, this.username, offer.sessionId(),
+                        relay, offer.size(), offer.streams(), offer.compression());
+                sendTo(receiverName, Frame.of("TRANSFER_REQUEST", mapper.writeValueAsString(request)));
+                FileTransfer relays = fileTransfer; // An embedded server has none to tell
+                if (relays != null) relays.offered(offer.sessionId(), this.username);
                 sendResponse("SEND_FILE", 800, "OK");
             } catch (UserNotFoundException e) {
                 System.err.println(e.getMessage());
@@ -262,35 +628,46 @@ public class Server {
         // RESPONSE FROM THE SUBJECT TO THE INITIATOR.
         // SUBJECT: sender.
         // INITIATOR: receiver.
-        private void handleTransferResponse(String json) throws JsonProcessingException {
+        private void handleTransferResponse(FileTransferResponse answer) throws JsonProcessingException {
             if (isNotLoggedIn()) return;
 
-            boolean status = Boolean.parseBoolean(getPropertyFromJson(json, "status"));
-            UUID sessionId = UUID.fromString(getPropertyFromJson(json, "sessionId"));
-
-            FileTransferRequest ftr = pendingFTRequests.stream()
-                    .filter(req -> req.sessionId().equals(sessionId))
-                    .findAny()
-                    .orElse(null);
+            boolean status = answer.status();
+            UUID sessionId = answer.sessionId();
 
+            FileTransferRequest ftr = pendingFTRequests.remove(sessionId);
             if (ftr == null) {
                 sendResponse("TRANSFER_RESPONSE", 860, "ERROR");
                 return;
             }
 
-            FileTransferResponse fts = new FileTransferResponse(status, this.username, ftr.sessionId());
+            FileTransferResponse fts = new FileTransferResponse(status, this.username, ftr.sessionId(), answer.compression());
             String response = mapper.writeValueAsString(fts);
             sendResponse("SEND_FILE", 800, response, ftr.sender());
             sendResponse("TRANSFER_RESPONSE", 800, "OK");
-            pendingFTRequests.remove(ftr);
+        }
+
+        // RESUME FROM THE RECEIVER TO THE SENDER, once some of the streams of a transfer broke off.
+        // Only the sender knows the sessions it offered, it checks the receiver against it.
+        private void handleTransferResume(FileTransferResume resume) throws JsonProcessingException {
+            if (isNotLoggedIn()) return;
+
+            String senderName = resume.username();
+            try {
+                FileTransferResume forwarded = new FileTransferResume(resume.sessionId(), this.username, resume.offsets());
+                sendTo(senderName, Frame.of("TRANSFER_RESUME", mapper.writeValueAsString(forwarded)));
+                sendResponse("TRANSFER_RESUME", 800, "OK");
+            } catch (UserNotFoundException e) {
+                String notFoundJson = mapper.writeValueAsString(new NotFound("user", senderName));
+                sendResponse("TRANSFER_RESUME", 711, notFoundJson);
+            }
         }
 
         // -----------------------------------   GUESSING GAME HANDLERS   ------------------------------------------------
 
-        private void handleGameLaunch(String json) throws JsonProcessingException {
+        private void handleGameLaunch(Lobby request) throws JsonProcessingException {
             if (isNotLoggedIn()) return;
 
-            String lobbyName = getPropertyFromJson(json, "lobby");
+            String lobbyName = request.lobby();
             if (activeGames.containsKey(lobbyName)) {
                 sendResponse("GAME_LAUNCH", 857, lobbyName);
                 return;
@@ -300,19 +677,21 @@ public class Server {
                 return;
             }
 
-            GuessingGame newGame = new GuessingGame(lobbyName, this, () -> activeGames.remove(lobbyName));
+            // Its timers run on the server's wheel, a lobby costs no thread of its own
+            GuessingGame newGame = new GuessingGame(lobbyName, this, () -> activeGames.remove(lobbyName), timers);
+            if (activeGames.putIfAbsent(lobbyName, newGame) != null) {
+                sendResponse("GAME_LAUNCH", 857, lobbyName); // Someone else launched it in the meantime
+                return;
+            }
             inGame = true;
-            new Thread(newGame, "Game_" + lobbyName).start();
+            newGame.start();
             sendResponse("GAME_LAUNCH", 800, "OK");
-            activeGames.put(lobbyName, newGame);
-            users.stream()
-                    .filter(user -> !user.username.equals(this.username))
-                    .forEach(user -> user.out.println("GAME_LAUNCHED " + wrapInJson("lobby", lobbyName)));
+            broadcast(Frame.broadcast("GAME_LAUNCHED", wrapInJson("lobby", lobbyName)));
         }
 
-        private void handleGameJoin(String json) throws JsonProcessingException {
+        private void handleGameJoin(Lobby request) throws JsonProcessingException {
             if (isNotLoggedIn()) return;
-            GuessingGame game = getGameByLobbyName("GAME_JOIN", json);
+            GuessingGame game = getGameByLobbyName("GAME_JOIN", request.lobby());
             if (game == null) return;
             if (inGame) {
                 sendResponse("GAME_JOIN", 855, "ERROR");
@@ -328,45 +707,159 @@ public class Server {
                 sendResponse("GAME_GUESS", 852, "ERROR");
                 return;
             }
-            GuessingGame game = getGameByLobbyName("GAME_GUESS", json);
-            if (game == null) return;
+            GameGuess guess;
             try {
-                int guess = Integer.parseInt(getPropertyFromJson(json, "guess"));
-                game.handleGameGuess(this, guess);
-            } catch (NumberFormatException e) {
-                sendResponse("GAME_GUESS", 853, "ERROR");
+                guess = Json.read(json, GameGuess.class);
+            } catch (InvalidFormatException e) {
+                sendResponse("GAME_GUESS", 853, "ERROR"); // Not a number, the rest of it is fine
+                return;
+            }
+            GuessingGame game = getGameByLobbyName("GAME_GUESS", guess.lobby());
+            if (game == null) return;
+            game.handleGameGuess(this, guess.guess());
+        }
+
+
+        // -----------------------------------   HISTORY HANDLERS   ------------------------------------------------
+
+        // Pages backwards, each page says what to ask for to get the one before it. Rooms only for their members.
+        private void handleHistory(HistoryRequest request) throws JsonProcessingException {
+            if (isNotLoggedIn()) return;
+
+            String room = request.room();
+            if (!room.isEmpty() && !joinedRooms.contains(room)) {
+                sendResponse("HISTORY", 892, room);
+                return;
+            }
+            int limit = request.limit() <= 0 ? 50 : Math.min(request.limit(), HISTORY_PAGE);
+            if (!paging.compareAndSet(false, true)) {
+                sendResponse("HISTORY", 893, "ERROR");
+                return;
+            }
+            // Older pages come off the disk, the response goes out from the history's reader then
+            history.page(room, request.before(), limit).whenComplete((page, failure) -> {
+                paging.set(false);
+                try {
+                    if (failure != null) {
+                        if (!(failure instanceof RejectedExecutionException))
+                            System.err.println("Could not page the history of '" + room + "': " + failure);
+                        sendResponse("HISTORY", 894, "ERROR");
+                        return;
+                    }
+                    List<HistoryEntry> entries = page.entries().stream()
+                            .map(entry -> new HistoryEntry(entry.offset(), entry.time(), entry.room(), entry.username(), entry.message()))
+                            .toList();
+                    sendResponse("HISTORY", 800, new HistoryPage(room, entries, page.before()));
+                } catch (JsonProcessingException ignored) {
+                }
+            });
+        }
+
+        // -----------------------------------   ROOM HANDLERS   ------------------------------------------------
+
+        private void handleJoinRoom(Room request) throws JsonProcessingException {
+            if (isNotLoggedIn()) return;
+
+            String room = request.room();
+            if (!room.matches(LOBBY_NAME_REGEX)) {
+                sendResponse("JOIN_ROOM", 890, room);
+                return;
+            }
+            if (joinedRooms.size() >= ROOMS_PER_USER && !joinedRooms.contains(room)) {
+                sendResponse("JOIN_ROOM", 895, ROOMS_PER_USER);
+                return;
+            }
+            switch (rooms.join(room, this)) {
+                case ALREADY_IN -> {
+                    sendResponse("JOIN_ROOM", 891, room);
+                    return;
+                }
+                case TOO_MANY_ROOMS -> {
+                    sendResponse("JOIN_ROOM", 896, room);
+                    return;
+                }
+                case JOINED -> { }
             }
+            joinedRooms.add(room);
+            sendResponse("JOIN_ROOM", 800, room);
+            publish(room, Frame.broadcast("ROOM_JOINED", mapper.writeValueAsString(new RoomMessage(room, this.username, ""))));
         }
 
+        private void handleLeaveRoom(Room request) throws JsonProcessingException {
+            if (isNotLoggedIn()) return;
+
+            String room = request.room();
+            if (!leaveRoom(room)) {
+                sendResponse("LEAVE_ROOM", 892, room);
+                return;
+            }
+            sendResponse("LEAVE_ROOM", 800, room);
+        }
+
+        // Only the members of the room get it, the rest of the server never hears about it
+        private void handleRoomMessage(RoomMessage request) throws JsonProcessingException {
+            if (isNotLoggedIn()) return;
+
+            String room = request.room();
+            if (!joinedRooms.contains(room)) {
+                sendResponse("ROOM_MESSAGE", 892, room);
+                return;
+            }
+            Frame frame = Frame.broadcast("ROOM_MESSAGE", mapper.writeValueAsString(new RoomMessage(room, this.username, request.message())));
+            history.append(room, this.username, request.message(), frame);
+            publish(room, frame);
+            sendResponse("ROOM_MESSAGE", 800, "OK");
+        }
+
+        private boolean leaveRoom(String room) throws JsonProcessingException {
+            if (!rooms.leave(room, this)) return false;
+            joinedRooms.remove(room);
+            publish(room, Frame.broadcast("ROOM_LEFT", mapper.writeValueAsString(new RoomMessage(room, this.username, ""))));
+            return true;
+        }
+
+        private void leaveRooms() {
+            for (String room : joinedRooms) {
+                try {
+                    leaveRoom(room);
+                } catch (JsonProcessingException ignored) {
+                }
+            }
+        }
+
+        // To the members on this node through its shard, to the ones on the other nodes through the cluster
+        private void publish(String room, Frame frame) {
+            rooms.publish(room, frame, this);
+            cluster.publish(room, frame);
+        }
 
         // -----------------------------------   SECURE MESSAGE HANDLERS   ------------------------------------------------
 
         // init to receiver
-        private void handleSecure(String json) throws JsonProcessingException {
+        private void handleSecure(TextMessage request) throws JsonProcessingException {
             if (isNotLoggedIn()) return;
 
-            String message = getPropertyFromJson(json, "message");
-            String receiverName = getPropertyFromJson(json, "username");
+            String message = request.message();
+            String receiverName = request.username();
 
             if (this.username.equals(receiverName)) {
                 sendResponse("SECURE", 822, "ERROR");
                 return;
             }
 
+            Frame frame = Frame.of("SECURE", mapper.writeValueAsString(new TextMessage(this.username, message)));
             try {
-                findUserByUsername(receiverName).out.println("SECURE " + mapper.writeValueAsString(new TextMessage(this.username, message)));
+                sendTo(receiverName, frame);
             } catch (UserNotFoundException e) {
-                NotFound notFound = new NotFound("user", receiverName);
-                sendResponse("SECURE", 711, mapper.writeValueAsString(notFound));
+                sendLater("SECURE", "user", receiverName, frame);
             }
         }
 
         // init to receiver
-        private void handlePublicKeyReq(String json) throws JsonProcessingException {
-            String receiver = getPropertyFromJson(json, "username");
+        private void handlePublicKeyReq(Username request) throws JsonProcessingException {
+            String receiver = request.username();
             try {
-                findUserByUsername(receiver).out.println("PUBLIC_KEY_REQ " +
-                        wrapInJson("username", this.username));
+                sendTo(receiver, Frame.of("PUBLIC_KEY_REQ", wrapInJson("username", this.username)));
             } catch (UserNotFoundException e) {
                 String notFoundJson = mapper.writeValueAsString(new NotFound("user", receiver));
                 sendResponse("PUBLIC_KEY_REQ", 711, notFoundJson);
@@ -374,11 +867,9 @@ public class Server {
         }
 
         // receiver to init
-        private void handlePublicKeyRes(String json) throws JsonProcessingException {
-            KeyExchange ke = mapper.readValue(json, KeyExchange.class);
+        private void handlePublicKeyRes(KeyExchange ke) throws JsonProcessingException {
             try {
-                findUserByUsername(ke.username()).out.println("PUBLIC_KEY_RES "
-                        + mapper.writeValueAsString(new KeyExchange(this.username, ke.key())));
+                sendTo(ke.username(), Frame.of("PUBLIC_KEY_RES", mapper.writeValueAsString(new KeyExchange(this.username, ke.key()))));
             } catch (UserNotFoundException e) {
                 String notFoundJson = mapper.writeValueAsString(new NotFound("user", ke.username()));
                 sendResponse("PUBLIC_KEY_RES", 711, notFoundJson);
@@ -386,11 +877,9 @@ public class Server {
         }
 
         // init to receiver
-        private void handleSessionKey(String json) throws JsonProcessingException {
-            KeyExchange ke = mapper.readValue(json, KeyExchange.class);
+        private void handleSessionKey(KeyExchange ke) throws JsonProcessingException {
             try {
-                findUserByUsername(ke.username()).out.println("SESSION_KEY "
-                        + mapper.writeValueAsString(new KeyExchange(this.username, ke.key())));
+                sendTo(ke.username(), Frame.of("SESSION_KEY", mapper.writeValueAsString(new KeyExchange(this.username, ke.key()))));
             } catch (UserNotFoundException e) {
                 String notFoundJson = mapper.writeValueAsString(new NotFound("user", ke.username()));
                 sendResponse("SESSION_KEY", 711, notFoundJson);
@@ -398,19 +887,19 @@ public class Server {
         }
 
         // receiver to init
-        private void handleSecureReady(String json) throws JsonProcessingException {
+        private void handleSecureReady(Username request) throws JsonProcessingException {
             try {
-                String username = getPropertyFromJson(json, "username");
-                findUserByUsername(username).out.println("SECURE_READY " + wrapInJson("username", this.username));
+                String username = request.username();
+                sendTo(username, Frame.of("SECURE_READY", wrapInJson("username", this.username)));
             } catch (UserNotFoundException e) {
-                throw new RuntimeException(e);
+                String notFoundJson = mapper.writeValueAsString(new NotFound("user", request.username()));
+                sendResponse("SECURE_READY", 711, notFoundJson);
             }
         }
 
         // -----------------------------------   UTILS   ------------------------------------------------
 
-        private GuessingGame getGameByLobbyName(String command, String json) throws JsonProcessingException {
-            String lobbyName = getPropertyFromJson(json, "lobby");
+        private GuessingGame getGameByLobbyName(String command, String lobbyName) throws JsonProcessingException {
             GuessingGame game = activeGames.get(lobbyName);
             if (game == null) {
                 String notFoundJson = mapper.writeValueAsString(new NotFound("game", lobbyName));
@@ -420,11 +909,39 @@ public class Server {
         }
 
         private Connection findUserByUsername(String username) throws UserNotFoundException {
-            Connection receiver = users.stream().filter(user -> user.username.equals(username)).findAny().orElse(null);
+            Connection receiver = users.get(username);
             if (receiver == null) throw new UserNotFoundException(username);
             return receiver;
         }
 
+        // The receiver isn't online anywhere, their mailbox keeps it for their next login if they ever logged in.
+        // The mailbox answers on its own thread, the response goes out from there.
+        private void sendLater(String command, String resource, String receiverName, Frame frame) throws JsonProcessingException {
+            String notFoundJson = mapper.writeValueAsString(new NotFound(resource, receiverName));
+            if (!mailbox.isOpen() || !receiverName.matches(USER_NAME_REGEX)) {
+                sendResponse(command, 711, notFoundJson);
+                return;
+            }
+            mailbox.store(this.username, receiverName, frame.type(), frame.body()).thenAccept(stored -> {
+                try {
+                    switch (stored) {
+                        case STORED -> sendResponse(command, 800, "QUEUED");
+                        case UNKNOWN -> sendResponse(command, 711, notFoundJson);
+                        case FULL -> sendResponse(command, 823, receiverName);
+                        case SENDER_FULL -> sendResponse(command, 824, "ERROR");
+                    }
+                } catch (JsonProcessingException ignored) {
+                }
+            });
+        }
+
+        // Users of this node get it right away, users of another node through the cluster
+        private void sendTo(String username, Frame frame) throws UserNotFoundException {
+            Connection receiver = users.get(username);
+            if (receiver != null) deliver(receiver, frame);
+            else if (!cluster.deliver(username, frame)) throw new UserNotFoundException(username);
+        }
+
         private boolean isNotLoggedIn() throws JsonProcessingException {
             if (username.isBlank() && !hasLoggedIn) {
                 sendResponse("LOGIN", 710, "ERROR"); // Its not a response TO login, but its universal so-
@@ -434,83 +951,175 @@ public class Server {
         }
 
         public void sendMessageToClient(String message) {
-            out.println(message);
+            send(message);
+        }
+
+        public void send(String line) {
+            send(Frame.of(line));
+        }
+
+        public void send(Frame frame) {
+            if (!transport.send(frame)) dropSlowConsumer();
+        }
+
+        // Everyone online except this connection gets the very same encoded frame
+        private void broadcast(Frame frame) {
+            int recipients = 0;
+            for (Connection user : users.values()) {
+                if (user != this && !user.transport.isClosed()) {
+                    user.send(frame);
+                    recipients++;
+                }
+            }
+            fanOut.record(recipients);
         }
 
         public <T> void sendResponse(String to, int status, T content) throws JsonProcessingException {
-            out.println("RESPONSE " + mapper.writeValueAsString(new Response<>(content, status, to)));
+            send("RESPONSE " + mapper.writeValueAsString(new Response<>(content, status, to)));
         }
 
         public <T> void sendResponse(String to, int status, T content, String username) throws JsonProcessingException {
             try {
-                Connection user = findUserByUsername(username);
-                user.out.println("RESPONSE " + mapper.writeValueAsString(new Response<>(content, status, to)));
+                sendTo(username, Frame.of("RESPONSE", mapper.writeValueAsString(new Response<>(content, status, to))));
             } catch (UserNotFoundException e) {
                 System.err.println("Internal error: " + e);
             }
         }
 
         public void addPendingFileTransferRequest(FileTransferRequest ftr) {
-            pendingFTRequests.add(ftr);
+            pendingFTRequests.put(ftr.sessionId(), ftr);
         }
 
         public void leaveGame() {
             inGame = false;
         }
 
+        // Its buffer is full, so a DISCONNECTED queued behind everything else would never arrive
+        private void dropSlowConsumer() {
+            System.err.println(username + " can't keep up with the messages sent to them, disconnecting");
+            transport.abort(Frame.of("DISCONNECTED", wrapInJson("message", 703)));
+            handleClientDisconnection();
+        }
+
         private void handleClientDisconnection() {
-            synchronized (users) {
-                users.remove(this);
-                for (Connection user : users) {
-                    if (!user.allocatedSocket.isClosed()) {
-                        try {
-                            user.out.println("LEFT " + mapper.writeValueAsString(new SystemMessage(this.username)));
-                        } catch (JsonProcessingException e) {
-                            // Handle exception
-                        }
-                    }
-                }
+            stopHeartbeat();
+            countClosed();
+            leaveRooms();
+            // Only the first of disconnect() and this one gets to announce the user leaving
+            if (!users.remove(this.username, this)) return;
+            cluster.left(this.username);
+            try {
+                broadcast(Frame.broadcast("LEFT", mapper.writeValueAsString(new SystemMessage(this.username))));
+            } catch (JsonProcessingException e) {
+                // Handle exception
             }
         }
 
         // -----------------------------------   HEARTBEAT   ------------------------------------------------
 
-        private class Heartbeat implements Runnable {
-            @Override
-            public void run() {
-                ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-                // Every X milliseconds execute a heartbeat.
-                executor.scheduleAtFixedRate(new HeartbeatTask(executor::shutdown), HEARTBEAT_PERIOD, HEARTBEAT_PERIOD, TimeUnit.SECONDS);
+        // Both steps run on the wheel's thread, which every connection, relay deadline and game shares. Sending a PING
+        // only queues it, but a disconnect tells every user and leaves every room, so that goes to the transport.
+
+        private void ping() {
+            if (transport.isClosed()) return; // Raced with a disconnect that cancelled the previous step
+            alive = false;
+            send("PING");
+            heartbeat = timers.schedule(this::checkPong, HEARTBEAT_REACTION, TimeUnit.SECONDS);
+        }
+
+        private void checkPong() {
+            if (alive) {
+                heartbeat = timers.schedule(this::ping, HEARTBEAT_PERIOD - HEARTBEAT_REACTION, TimeUnit.SECONDS);
+                return;
             }
+            transport.execute(() -> {
+                try {
+                    disconnect(701);
+                } catch (IOException e) {
+                    System.err.println("Could not disconnect " + username + " after a missed pong: " + e.getMessage());
+                }
+            });
+        }
 
-            private class HeartbeatTask extends TimerTask {
+        // Both disconnect() and handleClientDisconnection() may run for the same connection
+        private void countClosed() {
+            synchronized (counted) { // Against reserveDeflate
+                if (!counted.compareAndSet(false, true)) return;
+                if (deflated) deflatedConnections.decrementAndGet();
+            }
+            connectionsClosed.increment();
+        }
 
-                Runnable shutdown;
+        private void stopHeartbeat() {
+            TimingWheel.Timeout current = heartbeat;
+            if (current != null) current.cancel();
+        }
 
-                public HeartbeatTask(Runnable shutdown) {
-                    this.shutdown = shutdown;
+        @Override
+        public String toString() {
+            return "Connection{" + "username='" + username + '\'' + '}';
+        }
+    }
+
+    // Pending transfer requests are kept by the receiving connection, wherever the request came from
+    private static void deliver(Connection receiver, Frame frame) {
+        if (frame.type().equals("TRANSFER_REQUEST")) {
+            try {
+                receiver.addPendingFileTransferRequest(Json.read(frame.body(), FileTransferRequest.class));
+            } catch (JsonProcessingException e) {
+                System.err.println("Dropping a malformed transfer request for " + receiver.username);
+                return;
+            }
+        }
+        receiver.send(frame);
+    }
+
+    // -----------------------------------   CLUSTER   ------------------------------------------------
+
+    // Frames from the other nodes, for the users of this one
+    private class LocalUsers implements Cluster.Local {
+        @Override
+        public void deliver(String username, Frame frame) {
+            Connection receiver = users.get(username);
+            if (receiver != null) Server.deliver(receiver, frame);
+        }
+
+        @Override
+        public void broadcast(Frame frame) {
+            if (frame.type().equals("BROADCAST")) {
+                try {
+                    TextMessage message = Json.read(frame.body(), TextMessage.class);
+                    history.append("", message.username(), message.message(), frame);
+                } catch (JsonProcessingException ignored) {
                 }
+            }
+            for (Connection user : users.values()) {
+                if (!user.transport.isClosed()) user.send(frame);
+            }
+        }
 
-                @Override
-                public void run() {
-                    try {
-                        alive = false;
-                        out.println("PING");
-                        Thread.sleep(HEARTBEAT_REACTION);
-                        if (!alive) {
-                            disconnect(701);
-                            shutdown.run();
-                        }
-                    } catch (IOException | InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
+        @Override
+        public void publish(String room, Frame frame) {
+            if (frame.type().equals("ROOM_MESSAGE")) {
+                try {
+                    RoomMessage message = Json.read(frame.body(), RoomMessage.class);
+                    history.append(room, message.username(), message.message(), frame);
+                } catch (JsonProcessingException ignored) {
                 }
             }
+            rooms.publish(room, frame, null);
         }
 
+        // Logged in on another node, whatever waits for them here goes after them
         @Override
-        public String toString() {
-            return "Connection{" + "username='" + username + '\'' + '}';
+        public void arrived(String username) {
+            mailbox.seen(username);
+            mailbox.deliver(username, waiting -> cluster.deliver(username, Frame.of(waiting.type(), waiting.body())));
+        }
+
+        @Override
+        public Set<String> usernames() {
+            return users.keySet();
         }
     }
 
@@ -525,7 +1134,10 @@ public class Server {
 
         @Override
         public void run() {
-            for (Connection user : server.users) {
+            System.out.println(server.commands.report());
+            server.history.force();
+            server.mailbox.force();
+            for (Connection user : server.users.values()) {
                 try {
                     user.disconnect(702);
                 } catch (IOException e) {
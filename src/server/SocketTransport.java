@@ -0,0 +1,128 @@
+package server;
+
+import util.Codec;
+import util.FrameDeflater;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Heartbeats, games and other connections all send here, but none of them touches the socket.
+// Frames go into a queue, and one writer at a time drains it through a buffered stream, so a burst
+// of frames ends up in a few large socket writes instead of one syscall per line.
+public class SocketTransport implements Transport {
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final Executor writers;
+    private final OutboundQueue queue;
+    private final LongAdder bytesOut; // Shared by all transports, see Server's metrics
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean closing = false;
+    private Codec codec = Codec.TEXT; // Writer only, a writer takes over from the previous one through the draining flag
+    private FrameDeflater deflater; // Writer only, once the connection agreed on deflate
+
+    public SocketTransport(Socket socket, Executor writers, OutboundQueue queue, LongAdder bytesOut) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+        this.writers = writers;
+        this.queue = queue;
+        this.bytesOut = bytesOut;
+    }
+
+    @Override
+    public boolean send(Frame frame) {
+        if (isClosed()) return true;
+        if (!queue.offer(frame)) return false;
+        scheduleDrain();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        scheduleDrain(); // The socket is closed by the writer, after the frames queued so far are out
+    }
+
+    // The writer is stuck in a write the peer does not read, so the farewell can't get past it.
+    // Closing the socket is what gets the writer unstuck.
+    @Override
+    public void abort(Frame farewell) {
+        closing = true;
+        queue.clear();
+        closeQuietly();
+        scheduleDrain(); // Only a writer may end the deflater, the write on the closed socket fails and it does
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closing || socket.isClosed();
+    }
+
+    // The reader thread is stuck in its read, a writer thread takes it
+    @Override
+    public void execute(Runnable task) {
+        writers.execute(task);
+    }
+
+    // Whoever flips the flag hands the drain to a writer, everyone else just leaves their frame in the queue
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) writers.execute(this::drain);
+    }
+
+    private void drain() {
+        try {
+            do {
+                Frame frame;
+                while ((frame = queue.poll()) != null) {
+                    if (frame.codecSwitch() != null) {
+                        codec = frame.codecSwitch();
+                        if (frame.deflates() && deflater == null) deflater = new FrameDeflater();
+                    } else if (deflater != null) frame.writeTo(deflater, codec);
+                    else bytesOut.add(frame.writeTo(out, codec));
+                }
+                // One sync flush per drain, so a burst of frames shares it
+                if (deflater != null) {
+                    ByteBuffer synced = deflater.sync();
+                    out.write(synced.array(), 0, synced.remaining());
+                    bytesOut.add(synced.remaining());
+                }
+                out.flush();
+                // Nothing new is queued once it's closing, so whatever was is out now
+                if (closing) {
+                    socket.close();
+                    endDeflater();
+                }
+                draining.set(false);
+                // A frame may have been added after the last poll but before the flag was cleared
+            } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+        } catch (IOException e) {
+            // Closing it makes the reading side notice the broken socket and clean the connection up
+            queue.clear();
+            closeQuietly();
+            endDeflater();
+            draining.set(false);
+        }
+    }
+
+    // Writer only, while it holds the draining flag. Gives the native memory back right away instead of whenever
+    // the GC gets to it.
+    private void endDeflater() {
+        if (deflater == null) return;
+        deflater.close();
+        deflater = null;
+    }
+
+    private void closeQuietly() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package server;
+
+import java.io.IOException;
+
+// Where a Connection writes its protocol lines to. The blocking server backs it with the
+// socket's output stream, the NIO server with a channel owned by one of the event loops.
+public interface Transport {
+
+    // Queues one already encoded protocol line. The same Frame may be sent to many transports at once.
+    // Returns false when the peer has fallen so far behind that it has to be dropped, see OutboundQueue.
+    boolean send(Frame frame);
+
+    // Closes the underlying socket once whatever was already sent has been written out
+    void close() throws IOException;
+
+    // For peers that stopped reading: throws away what is queued and closes right away.
+    // The farewell frame is only delivered if the socket happens to take it without waiting.
+    void abort(Frame farewell);
+
+    boolean isClosed();
+
+    // Runs the task off the caller's thread, where the connection's own work goes: its event loop in the NIO server.
+    // For what the timers must not do themselves, like a disconnect that tells everyone.
+    void execute(Runnable task);
+}
@@ -0,0 +1,37 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Direct buffers of one size, handed out and taken back instead of allocated per use. Direct memory is only given
+// back to the OS when the GC gets around to the buffer, so allocating one per transfer makes a long running relay
+// creep upwards. At most maxIdle buffers are kept, whoever uses more than that at once allocates the rest.
+public class BufferPool {
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> idle;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer != null) return buffer.clear();
+        allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    // The buffer must not be used after this
+    public void release(ByteBuffer buffer) {
+        if (!idle.offer(buffer)) allocated.decrementAndGet(); // Past maxIdle, left to the GC
+    }
+
+    // Buffers around right now, in use or idle
+    public int allocated() {
+        return allocated.get();
+    }
+}
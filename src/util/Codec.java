@@ -0,0 +1,49 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+// How frames go over the wire. Every connection starts out in TEXT and may switch to BINARY
+// with a PROTOCOL command right after the GREET, see FrameDecoder for the reading side.
+public enum Codec {
+
+    // "TYPE json\n", what every client speaks
+    TEXT {
+        @Override
+        public byte[] encode(String type, String body) {
+            String line = body.isEmpty() ? type + "\n" : type + " " + body + "\n";
+            return line.getBytes(StandardCharsets.UTF_8);
+        }
+    },
+
+    // [varint length][opcode][body], the length counts the opcode and the body. No type names, no
+    // separators to search for, and a PING or a PONG is just two bytes.
+    BINARY {
+        @Override
+        public byte[] encode(String type, String body) {
+            byte opcode = Opcodes.of(type);
+            String payload = opcode == Opcodes.EXTENDED ? type + " " + body : body;
+            byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 6);
+            int length = bytes.length + 1;
+            while ((length & ~0x7F) != 0) {
+                out.write((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            out.write(length);
+            out.write(opcode);
+            out.write(bytes, 0, bytes.length);
+            return out.toByteArray();
+        }
+    };
+
+    public abstract byte[] encode(String type, String body);
+
+    // The name used in the PROTOCOL command, null for anything unsupported
+    public static Codec forName(String name) {
+        for (Codec codec : values()) {
+            if (codec.name().equalsIgnoreCase(name)) return codec;
+        }
+        return null;
+    }
+}
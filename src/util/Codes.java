@@ -12,8 +12,11 @@ public class Codes {
             entry(810, "You can't log in twice"),
             entry(811, "Invalid username format"),
             entry(812, "User with this username already exists"),
+            entry(813, "The server could not check your username with the rest of the cluster, try again"),
             // 820-829 reserved for message related codes
             entry(822, "Cannot send a private message to yourself"),
+            entry(823, "%s is offline and can't take any more messages until they log in"),
+            entry(824, "You have too many messages waiting for offline users already"),
             // 830-839 reserved for heartbeat codes
             entry(830, "Pong without ping"),
             // 840-849 reserved for user list related errors
@@ -29,10 +32,26 @@ public class Codes {
             entry(858, "You can no longer join game %s"),
             // 860-869 reserved for file transfer related errors,
             entry(861, "You cannot send a file to yourself"),
+            entry(862, "A file goes over 1 to %s streams"),
+            // 870-879 reserved for protocol negotiation
+            entry(870, "The protocol can only be changed before logging in"),
+            entry(871, "The server does not support the %s protocol"),
+            // 880-889 reserved for admin commands
+            entry(880, "Only admins can do that"),
+            // 890-899 reserved for rooms
+            entry(890, "Invalid room name %s"),
+            entry(891, "You are already in room %s"),
+            entry(892, "You are not in room %s"),
+            entry(893, "Wait for the page of history you asked for first"),
+            entry(894, "The history can't be paged right now, try again later"),
+            entry(895, "You can't be in more than %s rooms at once"),
+            entry(896, "There are too many rooms to open %s, join one that exists"),
             // 700-710 reserved for disconnection reasons,
             entry(700, "Pong timeout"),
             entry(701, "Unterminated message"),
             entry(702, "Server was shut down"),
+            entry(703, "You were too slow to keep up with the messages sent to you"),
+            entry(704, "The server failed to handle your message"),
             // 710-720 reserved for general codes
             entry(710, "You are not logged in"),
             entry(711, "%s %s was not found")
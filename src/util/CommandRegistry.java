@@ -0,0 +1,137 @@
+package util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Handlers for the protocol commands, registered once at startup and looked up by opcode on every frame.
+// C is whoever handles them, a server connection or the client. Every dispatch is counted and timed
+// per command into a histogram, so it shows which commands the CPU time actually goes to.
+// Registering is not thread safe, it is meant to happen before the first dispatch.
+public class CommandRegistry<C> {
+
+    public interface Handler<C, T> {
+        void handle(C context, T request) throws IOException;
+    }
+
+    private final Command<C, ?>[] byOpcode;
+    private final Map<String, Command<C, ?>> extended = new HashMap<>(); // Types without an opcode of their own
+    private final LongAdder unknown = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public CommandRegistry() {
+        this.byOpcode = (Command<C, ?>[]) new Command<?, ?>[256];
+    }
+
+    // The body is read into the record with Json before the handler sees it
+    public <T> CommandRegistry<C> register(String type, Class<T> record, Handler<C, T> handler) {
+        return add(new Command<>(type, body -> Json.read(body, record), handler));
+    }
+
+    // The handler gets the body as it came, for commands without one or with their own way of reading it
+    public CommandRegistry<C> register(String type, Handler<C, String> handler) {
+        return add(new Command<>(type, body -> body, handler));
+    }
+
+    private CommandRegistry<C> add(Command<C, ?> command) {
+        byte opcode = Opcodes.of(command.type);
+        if (opcode == Opcodes.EXTENDED) extended.put(command.type, command);
+        else byOpcode[opcode & 0xFF] = command;
+        return this;
+    }
+
+    // False if nothing is registered for the type. Failures are counted and thrown on to the caller.
+    public boolean dispatch(C context, String type, String body) throws IOException {
+        byte opcode = Opcodes.of(type);
+        Command<C, ?> command = opcode == Opcodes.EXTENDED ? extended.get(type) : byOpcode[opcode & 0xFF];
+        if (command == null) {
+            unknown.increment();
+            return false;
+        }
+        command.dispatch(context, body);
+        return true;
+    }
+
+    // -----------------------------------   METRICS   ------------------------------------------------
+
+    public List<Stats> stats() {
+        List<Stats> stats = new ArrayList<>();
+        for (Command<C, ?> command : byOpcode) if (command != null) stats.add(command.stats());
+        for (Command<C, ?> command : extended.values()) stats.add(command.stats());
+        stats.sort(Comparator.comparingLong(Stats::totalNanos).reversed());
+        return stats;
+    }
+
+    // The busiest commands first, by the total time spent in their handlers
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format("%-18s %10s %8s %10s %10s %10s%n",
+                "command", "count", "errors", "total ms", "mean us", "max us"));
+        for (Stats s : stats()) {
+            if (s.count() == 0) continue;
+            report.append(String.format("%-18s %10d %8d %10.1f %10.1f %10.1f%n", s.type(), s.count(), s.errors(),
+                    s.totalNanos() / 1e6, s.totalNanos() / 1e3 / s.count(), s.maxNanos() / 1e3));
+        }
+        return report.append("unknown commands: ").append(unknown.sum()).toString();
+    }
+
+    // Every command's counters and latency histogram, labelled with the command
+    public void exportTo(Metrics metrics) {
+        for (Command<C, ?> command : byOpcode) if (command != null) command.exportTo(metrics);
+        for (Command<C, ?> command : extended.values()) command.exportTo(metrics);
+        metrics.register("commands_unknown_total", unknown);
+    }
+
+    public record Stats(String type, long count, long errors, long totalNanos, long maxNanos) { }
+
+    // -----------------------------------   COMMAND   ------------------------------------------------
+
+    private interface Decoder<T> {
+        T decode(String body) throws JsonProcessingException;
+    }
+
+    private static class Command<C, T> {
+        private final String type;
+        private final Decoder<T> decoder;
+        private final Handler<C, T> handler;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final Histogram latency = new Histogram(); // Nanoseconds
+
+        private Command(String type, Decoder<T> decoder, Handler<C, T> handler) {
+            this.type = type;
+            this.decoder = decoder;
+            this.handler = handler;
+        }
+
+        // Decoding counts towards the command, it is part of what the command costs
+        private void dispatch(C context, String body) throws IOException {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                handler.handle(context, decoder.decode(body));
+                failed = false;
+            } finally {
+                count.increment();
+                if (failed) errors.increment();
+                latency.record(System.nanoTime() - start);
+            }
+        }
+
+        private Stats stats() {
+            return new Stats(type, count.sum(), errors.sum(), latency.sum(), latency.max());
+        }
+
+        private void exportTo(Metrics metrics) {
+            String label = "{command=\"" + type + "\"}";
+            metrics.register("commands_total" + label, count);
+            metrics.register("command_errors_total" + label, errors);
+            metrics.register("command_latency_ns" + label, latency);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package util;
+
+import exceptions.FrameTooLongException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Cuts whatever bytes arrive into frames, in either codec, and hands them over as type and body.
+// Push based, so the event loops and the blocking readers feed it the same way. The codec may be switched
+// by the sink while it handles a frame, the bytes after that frame are then decoded with the new one. The same goes
+// for deflate: once the sink has turned it on, everything after that frame is inflated first.
+// Not thread safe, one decoder belongs to one reading side.
+public class FrameDecoder {
+
+    public interface Sink {
+        void frame(String type, String body) throws IOException;
+    }
+
+    private final int maxFrameLength;
+    private Codec codec = Codec.TEXT;
+    private FrameInflater inflater; // Null until the connection agreed on deflate
+    // Bytes of a frame that has not fully arrived yet
+    private byte[] pending = new byte[128];
+    private int pendingLength = 0;
+    private int scanned = 0; // How far into pending a text line has been searched for its end already
+
+    public FrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    // There is no going back, a deflate stream lasts as long as the connection
+    public void setInflater(FrameInflater inflater) {
+        this.inflater = inflater;
+    }
+
+    public boolean isInflating() {
+        return inflater != null;
+    }
+
+    // Once the connection is gone, so the inflater's native memory doesn't wait for the GC. Can't be fed after this.
+    public void close() {
+        if (inflater != null) inflater.close();
+    }
+
+    public void feed(ByteBuffer input, Sink sink) throws IOException {
+        if (inflater == null) decode(input, sink);
+        else inflate(input, sink);
+    }
+
+    private void inflate(ByteBuffer input, Sink sink) throws IOException {
+        inflater.setInput(input);
+        ByteBuffer piece;
+        while ((piece = inflater.inflate()) != null) decode(piece, sink);
+    }
+
+    private void decode(ByteBuffer input, Sink sink) throws IOException {
+        append(input);
+        int start = 0, consumed;
+        while (start < pendingLength) {
+            FrameInflater before = inflater;
+            consumed = codec == Codec.TEXT ? decodeLine(start, sink) : decodeBinary(start, sink);
+            if (consumed == 0) break;
+            start += consumed;
+            if (inflater != before) {
+                // Deflate was turned on by that frame, what came in behind it is deflated already
+                ByteBuffer deflated = ByteBuffer.wrap(Arrays.copyOfRange(pending, start, pendingLength));
+                pendingLength = scanned = 0;
+                inflate(deflated, sink);
+                return;
+            }
+        }
+        // Whatever is left is the beginning of the next frame
+        System.arraycopy(pending, start, pending, 0, pendingLength - start);
+        pendingLength -= start;
+        scanned = Math.max(0, scanned - start);
+    }
+
+    // The leftover is never longer than one frame, the decode methods throw before it gets there
+    private void append(ByteBuffer input) {
+        int needed = pendingLength + input.remaining();
+        if (needed > pending.length) pending = Arrays.copyOf(pending, Math.max(needed, pending.length * 2));
+        input.get(pending, pendingLength, input.remaining());
+        pendingLength = needed;
+    }
+
+    // -----------------------------------   TEXT   ------------------------------------------------
+
+    private int decodeLine(int start, Sink sink) throws IOException {
+        int end = Math.max(start, scanned);
+        while (end < pendingLength && pending[end] != '\n') end++;
+        if (end == pendingLength) {
+            scanned = end;
+            if (end - start > maxFrameLength) throw new FrameTooLongException(maxFrameLength);
+            return 0;
+        }
+        int lineEnd = end > start && pending[end - 1] == '\r' ? end - 1 : end;
+        String line = new String(pending, start, lineEnd - start, StandardCharsets.UTF_8);
+        scanned = end + 1;
+        dispatch(line, sink);
+        return end + 1 - start;
+    }
+
+    // -----------------------------------   BINARY   ------------------------------------------------
+
+    private int decodeBinary(int start, Sink sink) throws IOException {
+        int length = 0, shift = 0, position = start;
+        while (true) {
+            if (position == pendingLength) return 0;
+            byte b = pending[position++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            shift += 7;
+            // Four bytes hold 2^28, way past any frame limit. A fifth one could overflow the length into a negative.
+            if (shift >= 28) throw new FrameTooLongException(maxFrameLength);
+        }
+        if (length < 0 || length > maxFrameLength) throw new FrameTooLongException(maxFrameLength);
+        if (length == 0) throw new IOException("Binary frame without an opcode");
+        if (pendingLength - position < length) return 0;
+
+        byte opcode = pending[position];
+        String body = new String(pending, position + 1, length - 1, StandardCharsets.UTF_8);
+        scanned = position + length;
+        if (opcode == Opcodes.EXTENDED) dispatch(body, sink);
+        else {
+            String type = Opcodes.typeOf(opcode);
+            sink.frame(type == null ? "UNKNOWN_OPCODE_" + (opcode & 0xFF) : type, body);
+        }
+        return position + length - start;
+    }
+
+    private static void dispatch(String line, Sink sink) throws IOException {
+        String[] parts = line.split(" ", 2);
+        sink.frame(parts[0], parts.length == 2 ? parts[1] : "");
+    }
+}
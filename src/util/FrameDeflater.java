@@ -0,0 +1,59 @@
+package util;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+// One direction of a connection that agreed on deflate, see the PROTOCOL command. Every frame goes into one deflate
+// stream that lives as long as the connection, so the JSON keys, usernames and types a frame shares with the ones
+// before it cost a couple of bytes. Frames are written as they come, sync() ends a batch of them with a SYNC_FLUSH so
+// the other side can read all of it without waiting for more. A stream costs a few hundred KB of native memory.
+// Not thread safe, it belongs to the one writer of a connection.
+public class FrameDeflater extends OutputStream {
+
+    public static final int LEVEL = Integer.getInteger("compressionLevel", Deflater.DEFAULT_COMPRESSION);
+
+    // Process wide, frame bytes that went in and what came out for them
+    public static final LongAdder RAW = new LongAdder();
+    public static final LongAdder DEFLATED = new LongAdder();
+
+    private final Deflater deflater = new Deflater(LEVEL, true); // Raw deflate, TCP takes care of the rest
+    private byte[] out = new byte[4 * 1024];
+    private int length = 0;
+
+    @Override
+    public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) {
+        RAW.add(count);
+        deflater.setInput(bytes, offset, count);
+        while (!deflater.needsInput()) deflate(Deflater.NO_FLUSH);
+    }
+
+    // Everything written since the last sync, deflated. Valid until the next write.
+    public ByteBuffer sync() {
+        do {
+            deflate(Deflater.SYNC_FLUSH);
+        } while (length == out.length); // Full means there may be more
+        DEFLATED.add(length);
+        ByteBuffer synced = ByteBuffer.wrap(out, 0, length);
+        length = 0;
+        return synced;
+    }
+
+    private void deflate(int flush) {
+        if (length == out.length) out = Arrays.copyOf(out, out.length * 2);
+        length += deflater.deflate(out, length, out.length - length, flush);
+    }
+
+    // Gives the native memory back right away instead of whenever the GC gets to it, the stream can't be used after this
+    @Override
+    public void close() {
+        deflater.end();
+    }
+}
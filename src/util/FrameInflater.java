@@ -0,0 +1,51 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// The reading side of a FrameDeflater. Hands out what it inflates a piece at a time, so a few bytes that inflate to
+// gigabytes never get further than the FrameDecoder's frame limit.
+// Not thread safe, it belongs to the one reader of a connection.
+public class FrameInflater {
+
+    private static final int PIECE = 16 * 1024;
+
+    // Process wide, bytes that came in deflated and what they inflated to
+    public static final LongAdder DEFLATED = new LongAdder();
+    public static final LongAdder INFLATED = new LongAdder();
+
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] piece = new byte[PIECE];
+    private boolean closed = false;
+
+    // Takes all of input, inflate() then hands out what it inflates to until it returns null
+    public void setInput(ByteBuffer input) {
+        DEFLATED.add(input.remaining());
+        inflater.setInput(input);
+    }
+
+    // The next piece, valid until the next call. Null when everything given so far is out.
+    public ByteBuffer inflate() throws IOException {
+        if (closed) throw new IOException("The deflate stream is closed");
+        try {
+            int inflated = inflater.inflate(piece);
+            if (inflated == 0) {
+                if (inflater.finished() || inflater.needsDictionary()) throw new IOException("The deflate stream ended");
+                return null;
+            }
+            INFLATED.add(inflated);
+            return ByteBuffer.wrap(piece, 0, inflated);
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed deflate stream: " + e.getMessage());
+        }
+    }
+
+    // Gives the native memory back right away instead of whenever the GC gets to it, the stream can't be used after this
+    public void close() {
+        closed = true;
+        inflater.end();
+    }
+}
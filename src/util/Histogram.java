@@ -0,0 +1,75 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A log-linear histogram of non-negative longs, usually nanoseconds. Every power of two is split into
+// 32 equal buckets, so any value is off by at most ~3% no matter if it's 200ns or 20s, and the whole
+// range of a long fits in a fixed 15KB. Recording is a few shifts and an atomic increment of the bucket,
+// nothing is shared between recorders but the buckets themselves. Any number of threads may record and read at once.
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS; // The last one ends at Long.MAX_VALUE
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+        if (value > max.get()) max.accumulateAndGet(value, Math::max);
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) count += counts.get(i);
+        return count;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // The upper end of the bucket the percentile falls in, so it never reads lower than what was recorded
+    public long percentile(double percentile) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(lowestOf(i + 1) - 1, max.get());
+        }
+        return max.get();
+    }
+
+    // -----------------------------------   BUCKETS   ------------------------------------------------
+
+    // Values below 32 get a bucket each, above that the top 6 bits pick the bucket
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long lowestOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        if (index >= BUCKETS) return Long.MAX_VALUE;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+}
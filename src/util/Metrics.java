@@ -0,0 +1,76 @@
+package util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Named counters, gauges and histograms, rendered as plain text lines, `name value`, sorted by name.
+// Recording never goes through here: whoever records holds on to the LongAdder or Histogram it got
+// at startup, so the hot path pays an add or a bucket increment and nothing else.
+// A name may carry labels, `commands_total{command="PRIVATE"}`, histograms add their quantile to them.
+public class Metrics {
+
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    private static final String[] QUANTILES = {"0.5", "0.99", "0.999"}; // The same, as labels
+
+    private final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    public LongAdder counter(String name) {
+        LongAdder counter = new LongAdder();
+        register(name, counter);
+        return counter;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = new Histogram();
+        register(name, histogram);
+        return histogram;
+    }
+
+    // Read when rendered, for values that are kept somewhere else anyway, like the number of users online
+    public void gauge(String name, LongSupplier value) {
+        metrics.put(name, value);
+    }
+
+    public void register(String name, LongAdder counter) {
+        metrics.put(name, counter);
+    }
+
+    public void register(String name, Histogram histogram) {
+        metrics.put(name, histogram);
+    }
+
+    public String render() {
+        StringBuilder text = new StringBuilder();
+        metrics.forEach((name, metric) -> {
+            switch (metric) {
+                case LongAdder counter -> line(text, name, counter.sum());
+                case LongSupplier gauge -> line(text, name, gauge.getAsLong());
+                case Histogram histogram -> {
+                    for (int i = 0; i < PERCENTILES.length; i++)
+                        line(text, withLabel(name, "quantile=\"" + QUANTILES[i] + "\""), histogram.percentile(PERCENTILES[i]));
+                    line(text, suffixed(name, "_max"), histogram.max());
+                    line(text, suffixed(name, "_sum"), histogram.sum());
+                    line(text, suffixed(name, "_count"), histogram.count());
+                }
+                default -> throw new IllegalStateException("Not a metric: " + metric);
+            }
+        });
+        return text.toString();
+    }
+
+    private static void line(StringBuilder text, String name, long value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String withLabel(String name, String label) {
+        int labels = name.indexOf('{');
+        return labels == -1 ? name + "{" + label + "}" : name.substring(0, name.length() - 1) + "," + label + "}";
+    }
+
+    private static String suffixed(String name, String suffix) {
+        int labels = name.indexOf('{');
+        return labels == -1 ? name + suffix : name.substring(0, labels) + suffix + name.substring(labels);
+    }
+}
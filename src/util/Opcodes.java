@@ -0,0 +1,44 @@
+package util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The one-byte opcodes of the binary protocol, shared by the client and the server.
+// A type missing from here still works, it is sent as EXTENDED with its name in front of the body.
+public class Opcodes {
+
+    public static final byte EXTENDED = 0; // Body is a whole text line, "TYPE json"
+
+    private static final String[] TYPES = {
+            null, // EXTENDED
+            // 1-15 connection and general
+            "GREET", "RESPONSE", "DISCONNECTED", "PING", "PONG", "LOGIN", "LEAVE", "ARRIVED",
+            "LEFT", "LIST", "PARSE_ERROR", "UNKNOWN_ACTION", "PROTOCOL", "STATS", "HISTORY",
+            // 16-31 messages and encryption
+            "BROADCAST", "PRIVATE", "SECURE", "PUBLIC_KEY_REQ", "PUBLIC_KEY_RES", "SESSION_KEY", "SECURE_READY", null,
+            "JOIN_ROOM", "LEAVE_ROOM", "ROOM_MESSAGE", "ROOM_JOINED", "ROOM_LEFT", null, null, null,
+            // 32-47 guessing game
+            "GAME_LAUNCH", "GAME_LAUNCHED", "GAME_JOIN", "GAME_START", "GAME_GUESS", "GAME_GUESSED", "GAME_END", "GAME_FAIL",
+            null, null, null, null, null, null, null, null,
+            // 48-63 file transfer
+            "SEND_FILE", "TRANSFER_REQUEST", "TRANSFER_RESPONSE", "TRANSFER_RESUME"
+    };
+
+    private static final Map<String, Byte> OPCODES = new HashMap<>();
+
+    static {
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i] != null) OPCODES.put(TYPES[i], (byte) i);
+        }
+    }
+
+    public static byte of(String type) {
+        return OPCODES.getOrDefault(type, EXTENDED);
+    }
+
+    // Unknown opcodes come back as null, the handlers treat them like any unknown command
+    public static String typeOf(byte opcode) {
+        int index = opcode & 0xFF;
+        return index < TYPES.length ? TYPES[index] : null;
+    }
+}
@@ -0,0 +1,155 @@
+package util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// A hashed timing wheel: one thread and a ring of buckets serve any number of timeouts.
+// Scheduling and cancelling are O(1), each tick only looks at the bucket it lands on.
+// Tasks run on the wheel's thread, so they must be short and must never sleep or block -
+// anything longer gets handed off to another thread by the task itself.
+// A wheel ticks for as long as the process lives, so its thread factory should make daemons.
+public class TimingWheel {
+
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000; // So a flood of new timeouts can't stall the ticking
+
+    // -----------------------------------   SETUP   ------------------------------------------------
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    // Handed over by any thread, moved into the buckets by the wheel thread on its next tick
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long startTime;
+
+    public TimingWheel(long tick, TimeUnit unit, int buckets, ThreadFactory threadFactory) {
+        if (Integer.bitCount(buckets) != 1) throw new IllegalArgumentException("Bucket count must be a power of two: " + buckets);
+        this.tickNanos = unit.toNanos(tick);
+        this.wheel = new Bucket[buckets];
+        for (int i = 0; i < buckets; i++) wheel[i] = new Bucket();
+        this.mask = buckets - 1;
+        this.startTime = System.nanoTime();
+        threadFactory.newThread(this::run).start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    // -----------------------------------   TICKING   ------------------------------------------------
+
+    private void run() {
+        long tick = 0;
+        while (true) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = deadline - (System.nanoTime() - startTime)) > 0) LockSupport.parkNanos(sleep);
+
+            removeCancelled();
+            transferScheduled(tick);
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void transferScheduled(long currentTick) {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = scheduled.poll();
+            if (timeout == null) return;
+            if (timeout.state.get() == Timeout.CANCELLED) continue;
+            long dueTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (dueTick - currentTick) / wheel.length;
+            // Already overdue ones go into the current bucket and fire right away
+            wheel[(int) (Math.max(dueTick, currentTick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    // -----------------------------------   TIMEOUT   ------------------------------------------------
+
+    public class Timeout {
+        private static final int WAITING = 0, CANCELLED = 1, EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline; // Nanos since the wheel started
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // Wheel thread only
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout previous, next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // Returns false if the task has already run (or is running)
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) return false;
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    // A doubly linked list, so a cancelled timeout can unlink itself without a search
+    private static class Bucket {
+        private Timeout head, tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) head = tail = timeout;
+            else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.previous != null) timeout.previous.next = timeout.next;
+            else head = timeout.next;
+            if (timeout.next != null) timeout.next.previous = timeout.previous;
+            else tail = timeout.previous;
+            timeout.previous = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        private void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                        try {
+                            timeout.task.run();
+                        } catch (RuntimeException e) {
+                            System.err.println("A timed task failed: " + e);
+                        }
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -2,7 +2,6 @@ package util;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import exceptions.InputArgumentMismatchException;
 import messages.TextMessage;
 
@@ -16,10 +15,10 @@ public class Util {
         return "{\"" + key + "\":\"" + value + "\"}";
     }
 
-    // Gets a certain property from a JSON objects
+    // Gets a certain property from a JSON objects. Parses the whole thing for one value, so commands with
+    // more than one field should be read into their record with Json.read instead.
     public static String getPropertyFromJson(String json, String property) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode node = mapper.readTree(json);
+        JsonNode node = Json.MAPPER.readTree(json);
         return node.path(property).asText();
     }
 